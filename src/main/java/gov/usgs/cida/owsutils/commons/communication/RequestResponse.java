@@ -1,23 +1,54 @@
 package gov.usgs.cida.owsutils.commons.communication;
 
 import com.google.gson.Gson;
-import com.jamesmurty.utils.XMLBuilder;
+import com.google.gson.JsonIOException;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonWriter;
 import gov.usgs.cida.owsutils.commons.io.FileHelper;
+import gov.usgs.cida.owsutils.commons.io.ResumableUpload;
+import gov.usgs.cida.owsutils.commons.io.exception.ShapefileFormatException;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
 import java.io.Writer;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.xml.parsers.FactoryConfigurationError;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.TransformerException;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 import org.apache.commons.fileupload.FileItemFactory;
 import org.apache.commons.fileupload.FileItemIterator;
 import org.apache.commons.fileupload.FileItemStream;
 import org.apache.commons.fileupload.FileUploadException;
 import org.apache.commons.fileupload.disk.DiskFileItemFactory;
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.LoggerFactory;
 
@@ -43,6 +74,23 @@ public class RequestResponse {
 		}
 	}
 	private static final org.slf4j.Logger LOGGER = LoggerFactory.getLogger(RequestResponse.class);
+	// Gson is thread safe, there is no need for an instance per response
+	private static final Gson GSON = new Gson();
+	private static final Type RESPONSE_MAP_TYPE = new TypeToken<Map<String, String>>() {
+	}.getType();
+	// Looked up once, creating a factory per response means a JAXP lookup per response
+	private static final XMLOutputFactory XML_OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+	private static final int RESPONSE_BUFFER_SIZE = 8192;
+	public static final int DEFAULT_MAXIMUM_BUFFERED_RESPONSE_SIZE = 1024 * 1024;
+	// Shared rather than per thread, container threads outlive the webapp
+	private static final int BUFFER_POOL_SIZE = Runtime.getRuntime().availableProcessors() * 2;
+	private static final Queue<ResponseBuffer> BUFFER_POOL = new ConcurrentLinkedQueue<>();
+	private static volatile int maximumBufferedResponseSize = DEFAULT_MAXIMUM_BUFFERED_RESPONSE_SIZE;
+	public static final int DEFAULT_COMPRESSION_THRESHOLD = 2048;
+	private static volatile int compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+	private static final int DEFLATER_POOL_SIZE = Runtime.getRuntime().availableProcessors() * 2;
+	private static final Queue<Deflater> DEFLATER_POOL = new ConcurrentLinkedQueue<>();
+	private static final Pattern CONTENT_RANGE_PATTERN = Pattern.compile("bytes\\s+(\\d+)-(\\d+)/(?:(\\d+)|\\*)");
 
 	/**
 	 * Takes a HttpServletRequest, parses it for a specific parameter that
@@ -55,6 +103,267 @@ public class RequestResponse {
 	 * @throws IOException
 	 */
 	public static void saveFileFromRequest(HttpServletRequest request, File destinationFile, String fileParam) throws FileUploadException, IOException {
+		InputStream fileStream = getFileStreamFromRequest(request, fileParam);
+		if (fileStream != null) {
+			FileHelper.copyInputStreamToFile(fileStream, destinationFile);
+		}
+	}
+
+	/**
+	 * Saves a shapefile archive uploaded in a HttpServletRequest, validating
+	 * it while it is being written instead of reading the saved file again.
+	 * The upload is aborted as soon as the archive is known to be invalid.
+	 *
+	 * @see FileHelper#copyAndValidateShapefileZip(java.io.InputStream, java.io.File)
+	 * @param request
+	 * @param destinationFile
+	 * @param fileParam
+	 * @throws FileUploadException if the request holds no file
+	 * @throws IOException
+	 * @throws ShapefileFormatException if the archive is not a valid shapefile
+	 * archive. Nothing is left at destinationFile in that case.
+	 */
+	public static void saveShapefileZipFromRequest(HttpServletRequest request, File destinationFile, String fileParam) throws FileUploadException, IOException, ShapefileFormatException {
+		InputStream fileStream = getFileStreamFromRequest(request, fileParam);
+		if (fileStream == null) {
+			throw new FileUploadException("Request does not contain " + fileParam);
+		}
+		FileHelper.copyAndValidateShapefileZip(fileStream, destinationFile);
+	}
+
+	/**
+	 * Saves one chunk of a resumable upload. The position of the chunk in the
+	 * file is taken from the Content-Range header of the request, as in
+	 * "bytes 1048576-2097151/52428800".
+	 *
+	 * Bytes received before a dropped connection are kept, so the client may
+	 * ask for {@link ResumableUpload#getMissingRanges()} and resend only
+	 * those.
+	 *
+	 * @param request
+	 * @param upload
+	 * @param fileParam
+	 * @return amount of bytes saved
+	 * @throws FileUploadException if the request holds no file or has no
+	 * valid Content-Range
+	 * @throws IOException
+	 */
+	public static long saveChunkFromRequest(HttpServletRequest request, ResumableUpload upload, String fileParam) throws FileUploadException, IOException {
+		String contentRange = request.getHeader("Content-Range");
+		Matcher rangeMatcher = contentRange == null ? null : CONTENT_RANGE_PATTERN.matcher(contentRange.trim());
+		if (rangeMatcher == null || !rangeMatcher.matches()) {
+			throw new FileUploadException("Request does not contain a valid Content-Range: " + contentRange);
+		}
+		long start = Long.parseLong(rangeMatcher.group(1));
+		long end = Long.parseLong(rangeMatcher.group(2)) + 1;
+		if (end <= start || end > upload.getLength() || (rangeMatcher.group(3) != null && Long.parseLong(rangeMatcher.group(3)) != upload.getLength())) {
+			throw new FileUploadException("Content-Range " + contentRange + " does not fit the " + upload.getLength() + " byte upload");
+		}
+
+		InputStream fileStream = getFileStreamFromRequest(request, fileParam);
+		if (fileStream == null) {
+			throw new FileUploadException("Request does not contain " + fileParam);
+		}
+		// Never write past the announced range
+		return upload.writeChunk(start, new BoundedInputStream(fileStream, end - start));
+	}
+
+	/**
+	 * Saves the file in a HttpServletRequest without holding a container
+	 * thread for the length of the upload, with no time limit. Stalled
+	 * uploads are then only ended by the container's connection timeout.
+	 *
+	 * @see #saveFileFromRequestAsync(javax.servlet.http.HttpServletRequest, java.io.File, java.lang.String, long)
+	 * @param request
+	 * @param destinationFile
+	 * @param fileParam
+	 * @return
+	 */
+	public static CompletableFuture<File> saveFileFromRequestAsync(HttpServletRequest request, File destinationFile, String fileParam) {
+		return saveFileFromRequestAsync(request, destinationFile, fileParam, 0);
+	}
+
+	/**
+	 * Saves the file in a HttpServletRequest without holding a container
+	 * thread for the length of the upload. The request is put into
+	 * asynchronous mode and its body is written to destinationFile by a
+	 * ReadListener as data arrives.
+	 *
+	 * Multipart requests can not be parsed without blocking, so those are
+	 * saved as by {@link #saveFileFromRequest(javax.servlet.http.HttpServletRequest, java.io.File, java.lang.String)}
+	 * on a thread handed out by the container.
+	 *
+	 * The servlet must support asynchronous processing. The caller sends the
+	 * response and completes the AsyncContext once the returned future is
+	 * done.
+	 *
+	 * @param request
+	 * @param destinationFile
+	 * @param fileParam
+	 * @param timeoutMillis time the whole upload may take, 0 for no limit.
+	 * Replaces the container's default asynchronous timeout, which is far too
+	 * short for large uploads.
+	 * @return completes with destinationFile once the upload is saved, or
+	 * exceptionally if it failed or timed out. Nothing is left at
+	 * destinationFile in that case.
+	 */
+	public static CompletableFuture<File> saveFileFromRequestAsync(final HttpServletRequest request, final File destinationFile, final String fileParam, long timeoutMillis) {
+		final AsyncUpload upload = new AsyncUpload(destinationFile);
+		try {
+			AsyncContext asyncContext = request.isAsyncStarted() ? request.getAsyncContext() : request.startAsync();
+			asyncContext.setTimeout(timeoutMillis);
+			asyncContext.addListener(new AsyncListener() {
+				@Override
+				public void onComplete(AsyncEvent event) {
+					upload.fail(new IOException("Request completed before the upload was saved"));
+				}
+
+				@Override
+				public void onTimeout(AsyncEvent event) {
+					upload.fail(new IOException("Upload timed out"));
+				}
+
+				@Override
+				public void onError(AsyncEvent event) {
+					upload.fail(event.getThrowable() == null ? new IOException("Upload failed") : event.getThrowable());
+				}
+
+				@Override
+				public void onStartAsync(AsyncEvent event) {
+				}
+			});
+
+			if (ServletFileUpload.isMultipartContent(request)) {
+				asyncContext.start(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							InputStream fileStream = getFileStreamFromRequest(request, fileParam);
+							if (fileStream == null) {
+								throw new FileUploadException("Request does not contain " + fileParam);
+							}
+							FileHelper.copyInputStreamToFile(fileStream, destinationFile);
+							upload.complete();
+						} catch (FileUploadException | IOException | RuntimeException ex) {
+							upload.fail(ex);
+						}
+					}
+				});
+			} else {
+				ServletInputStream in = request.getInputStream();
+				in.setReadListener(new FileReadListener(in, upload));
+			}
+		} catch (IOException | RuntimeException ex) {
+			upload.fail(ex);
+		}
+		return upload.future;
+	}
+
+	/**
+	 * The outcome of an asynchronous upload. Whichever of completion or
+	 * failure comes first wins. A failure releases the file and removes it.
+	 */
+	private static class AsyncUpload {
+
+		private final File destinationFile;
+		private final CompletableFuture<File> future = new CompletableFuture<>();
+		private FileChannel channel = null;
+
+		AsyncUpload(File destinationFile) {
+			this.destinationFile = destinationFile;
+		}
+
+		synchronized FileChannel openChannel() throws IOException {
+			File parent = destinationFile.getAbsoluteFile().getParentFile();
+			if (parent != null) {
+				FileUtils.forceMkdir(parent);
+			}
+			channel = FileChannel.open(destinationFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			return channel;
+		}
+
+		synchronized void complete() {
+			if (future.isDone()) {
+				// Failed while the last of the data was being written
+				FileUtils.deleteQuietly(destinationFile);
+				return;
+			}
+			try {
+				if (channel != null) {
+					channel.close();
+				}
+				future.complete(destinationFile);
+			} catch (IOException ex) {
+				fail(ex);
+			}
+		}
+
+		synchronized void fail(Throwable t) {
+			if (future.isDone()) {
+				return;
+			}
+			IOUtils.closeQuietly(channel);
+			FileUtils.deleteQuietly(destinationFile);
+			future.completeExceptionally(t);
+		}
+	}
+
+	/**
+	 * Writes a request body to a file whenever the container signals that
+	 * data can be read without blocking
+	 */
+	private static class FileReadListener implements ReadListener {
+
+		private final ServletInputStream in;
+		private final AsyncUpload upload;
+		private final ByteBuffer buffer = ByteBuffer.allocate(RESPONSE_BUFFER_SIZE);
+		private final FileChannel channel;
+
+		FileReadListener(ServletInputStream in, AsyncUpload upload) throws IOException {
+			this.in = in;
+			this.upload = upload;
+			this.channel = upload.openChannel();
+		}
+
+		@Override
+		public void onDataAvailable() {
+			try {
+				// Reading is only guaranteed not to block while isReady is true
+				while (in.isReady()) {
+					int read = in.read(buffer.array());
+					if (read == -1) {
+						break;
+					}
+					buffer.clear().limit(read);
+					while (buffer.hasRemaining()) {
+						channel.write(buffer);
+					}
+				}
+			} catch (IOException | RuntimeException ex) {
+				upload.fail(ex);
+			}
+		}
+
+		@Override
+		public void onAllDataRead() {
+			upload.complete();
+		}
+
+		@Override
+		public void onError(Throwable t) {
+			upload.fail(t);
+		}
+	}
+
+	/**
+	 * @param request
+	 * @param fileParam
+	 * @return the stream of the file in the request, null if a multipart
+	 * request holds no such file
+	 * @throws FileUploadException
+	 * @throws IOException
+	 */
+	private static InputStream getFileStreamFromRequest(HttpServletRequest request, String fileParam) throws FileUploadException, IOException {
 		// Handle form-based upload (from IE)
 		if (ServletFileUpload.isMultipartContent(request)) {
 			FileItemFactory factory = new DiskFileItemFactory();
@@ -67,12 +376,12 @@ public class RequestResponse {
 				FileItemStream item = iter.next();
 				String name = item.getFieldName();
 				if (fileParam.equalsIgnoreCase(name)) {
-					FileHelper.copyInputStreamToFile(item.openStream(), destinationFile);
-					break;
+					return item.openStream();
 				}
 			}
+			return null;
 		} else {
-			FileHelper.copyInputStreamToFile(request.getInputStream(), destinationFile);
+			return request.getInputStream();
 		}
 	}
 
@@ -95,9 +404,9 @@ public class RequestResponse {
 		}
 
 		if (responseType == null || responseType == ResponseType.JSON) {
-			sendJSONResponse(response, responseMap, false);
+			sendJSONResponse(null, response, responseMap, false);
 		} else {
-			sendXMLResponse(response, responseMap, false);
+			sendXMLResponse(null, response, responseMap, false);
 		}
 	}
 
@@ -108,59 +417,119 @@ public class RequestResponse {
 	 * @param responseType Null value allowed. Will default to JSON
 	 */
 	public static void sendSuccessResponse(HttpServletResponse response, Map<String, String> responseMap, ResponseType responseType) {
+		sendSuccessResponse(null, response, responseMap, responseType);
+	}
+
+	/**
+	 * Compresses the response with gzip if the request's Accept-Encoding
+	 * allows it and the response is at least as large as the compression
+	 * threshold
+	 *
+	 * @param request Null value allowed. Will not compress
+	 * @param response
+	 * @param responseMap
+	 * @param responseType Null value allowed. Will default to JSON
+	 */
+	public static void sendSuccessResponse(HttpServletRequest request, HttpServletResponse response, Map<String, String> responseMap, ResponseType responseType) {
 		responseMap.put(RequestResponse.SUCCESS_STRING, "true");
 		if (responseType == null || responseType == ResponseType.JSON) {
-			sendJSONResponse(response, responseMap, true);
+			sendJSONResponse(request, response, responseMap, true);
 		} else {
-			sendXMLResponse(response, responseMap, true);
+			sendXMLResponse(request, response, responseMap, true);
 		}
 	}
 
 	/**
 	 *
+	 * @param request Null value allowed. Will not compress
 	 * @param response
 	 * @param responseMap
 	 * @param isOk
 	 */
-	static void sendXMLResponse(HttpServletResponse response, Map<String, String> responseMap, boolean isOk) {
-		String responseContent = "<?xml version=\"1.0\" encoding=\"UTF-8\"?><success>" + responseMap.get("success") + "</success>";
-
-		try {
-			XMLBuilder root = XMLBuilder.create("Response");
-
-			String[] keySetArray = responseMap.keySet().toArray(new String[0]);
-			for (String key : keySetArray) {
-				root.element(key).text(responseMap.get(key));
+	static void sendXMLResponse(HttpServletRequest request, HttpServletResponse response, Map<String, String> responseMap, boolean isOk) {
+		if (!isOk) {
+			String responseContent = "<?xml version=\"1.0\" encoding=\"UTF-8\"?><success>" + responseMap.get("success") + "</success>";
+			try {
+				StringWriter stringWriter = new StringWriter();
+				XMLStreamWriter writer;
+				synchronized (XML_OUTPUT_FACTORY) {
+					writer = XML_OUTPUT_FACTORY.createXMLStreamWriter(stringWriter);
+				}
+				writeXMLResponse(writer, responseMap);
+				responseContent = stringWriter.toString();
+			} catch (XMLStreamException ex) {
+				LOGGER.error("Could not send response XML.", ex);
 			}
-			responseContent = root.asString();
-		} catch (ParserConfigurationException | FactoryConfigurationError | TransformerException ex) {
-			LOGGER.error("Could not send response XML.", ex);
-		}
 
-		if (!isOk) {
 			try {
 				response.sendError(Integer.parseInt(responseMap.get("serverCode")), responseContent);
 			} catch (IOException ex) {
 				LOGGER.warn("Possible error sending response data back to client", ex);
 			}
 		} else {
-			sendResponse(response, ResponseType.XML.toString(), responseContent, null);
+			response.setContentType(ResponseType.XML.toString());
+			response.setCharacterEncoding("utf-8");
+			try (OutputStream out = new ResponseBodyOutputStream(request, response)) {
+				XMLStreamWriter writer;
+				synchronized (XML_OUTPUT_FACTORY) {
+					writer = XML_OUTPUT_FACTORY.createXMLStreamWriter(out, "UTF-8");
+				}
+				writeXMLResponse(writer, responseMap);
+			} catch (XMLStreamException ex) {
+				LOGGER.error("Could not send response XML.", ex);
+			} catch (IOException ex) {
+				LOGGER.warn("Possible error sending response data back to client", ex);
+			}
 		}
 	}
 
-	static void sendJSONResponse(HttpServletResponse response, Map<String, String> responseMap, boolean isOk) {
-		String responseContent = new Gson().toJson(responseMap);
+	/**
+	 * Writes the response map as a Response element holding an element per
+	 * key, without an XML declaration
+	 *
+	 * @param writer
+	 * @param responseMap
+	 * @throws XMLStreamException
+	 */
+	private static void writeXMLResponse(XMLStreamWriter writer, Map<String, String> responseMap) throws XMLStreamException {
+		writer.writeStartElement("Response");
+		for (Map.Entry<String, String> entry : responseMap.entrySet()) {
+			if (StringUtils.isEmpty(entry.getValue())) {
+				writer.writeEmptyElement(entry.getKey());
+			} else {
+				writer.writeStartElement(entry.getKey());
+				writer.writeCharacters(entry.getValue());
+				writer.writeEndElement();
+			}
+		}
+		writer.writeEndElement();
+		writer.flush();
+		writer.close();
+	}
 
+	/**
+	 *
+	 * @param request Null value allowed. Will not compress
+	 * @param response
+	 * @param responseMap
+	 * @param isOk
+	 */
+	static void sendJSONResponse(HttpServletRequest request, HttpServletResponse response, Map<String, String> responseMap, boolean isOk) {
 		if (!isOk) {
 			try {
-				response.sendError(Integer.parseInt(responseMap.get("serverCode")), responseContent);
+				response.sendError(Integer.parseInt(responseMap.get("serverCode")), GSON.toJson(responseMap, RESPONSE_MAP_TYPE));
 			} catch (IOException ex) {
 				LOGGER.warn("Possible error sending response data back to client", ex);
 			}
 		} else {
-			sendResponse(response, ResponseType.JSON.toString(), responseContent, null);
+			response.setContentType(ResponseType.JSON.toString());
+			response.setCharacterEncoding("utf-8");
+			try (JsonWriter writer = new JsonWriter(new OutputStreamWriter(new ResponseBodyOutputStream(request, response), StandardCharsets.UTF_8))) {
+				GSON.toJson(responseMap, RESPONSE_MAP_TYPE, writer);
+			} catch (IOException | JsonIOException ex) {
+				LOGGER.warn("Possible error sending response data back to client", ex);
+			}
 		}
-
 	}
 
 	/**
@@ -172,18 +541,344 @@ public class RequestResponse {
 	 * http://www.iana.org/assignments/character-sets
 	 */
 	static void sendResponse(HttpServletResponse response, String contentType, String content, String characterEncoding) {
+		sendResponse(null, response, contentType, content, characterEncoding);
+	}
+
+	/**
+	 *
+	 * @param request Null value allowed. Will not compress
+	 * @param response
+	 * @param contentType
+	 * @param content
+	 * @param characterEncoding Must be within
+	 * http://www.iana.org/assignments/character-sets
+	 */
+	static void sendResponse(HttpServletRequest request, HttpServletResponse response, String contentType, String content, String characterEncoding) {
+		Charset charset = StringUtils.isBlank(characterEncoding) ? StandardCharsets.UTF_8 : Charset.forName(characterEncoding);
 		response.setContentType(contentType);
 		response.setCharacterEncoding(StringUtils.isBlank(characterEncoding) ? "utf-8" : characterEncoding);
-		response.setHeader("Content-Length", Integer.toString(content.length()));
 
-		try (Writer writer = response.getWriter()) {
+		try (Writer writer = new OutputStreamWriter(new ResponseBodyOutputStream(request, response), charset)) {
 			writer.write(content);
-			writer.flush();
 		} catch (IOException ex) {
 			LOGGER.warn("Possible error sending response data back to client", ex);
 		}
 	}
 
+	/**
+	 * Sets the size above which response bodies are no longer buffered to
+	 * send an exact Content-Length, but streamed to the client chunked
+	 *
+	 * @param size in bytes
+	 */
+	public static void setMaximumBufferedResponseSize(int size) {
+		if (size < 0) {
+			throw new IllegalArgumentException("Maximum buffered response size can not be negative");
+		}
+		maximumBufferedResponseSize = size;
+	}
+
+	public static int getMaximumBufferedResponseSize() {
+		return maximumBufferedResponseSize;
+	}
+
+	/**
+	 * Sets the size from which response bodies are compressed for clients
+	 * accepting gzip. Smaller bodies are sent as is, as compressing them
+	 * saves less time on the wire than it costs.
+	 *
+	 * @param size in bytes
+	 */
+	public static void setCompressionThreshold(int size) {
+		if (size < 0) {
+			throw new IllegalArgumentException("Compression threshold can not be negative");
+		}
+		compressionThreshold = size;
+	}
+
+	public static int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+
+	/**
+	 * @param acceptEncoding value of an Accept-Encoding header. Null value
+	 * allowed
+	 * @return true if the header allows a gzip encoded response
+	 */
+	static boolean acceptsGzip(String acceptEncoding) {
+		if (StringUtils.isBlank(acceptEncoding)) {
+			return false;
+		}
+		boolean accepted = false;
+		for (String coding : acceptEncoding.split(",")) {
+			String[] parameters = coding.split(";");
+			String name = parameters[0].trim();
+			boolean allowed = true;
+			for (int pIdx = 1; pIdx < parameters.length; pIdx++) {
+				String parameter = parameters[pIdx].trim();
+				if (parameter.startsWith("q=")) {
+					try {
+						allowed = Double.parseDouble(parameter.substring(2).trim()) > 0;
+					} catch (NumberFormatException ex) {
+						allowed = false;
+					}
+				}
+			}
+			if ("gzip".equalsIgnoreCase(name) || "x-gzip".equalsIgnoreCase(name)) {
+				// An explicit gzip coding overrides the wildcard
+				return allowed;
+			} else if ("*".equals(name)) {
+				accepted = allowed;
+			}
+		}
+		return accepted;
+	}
+
+	private static Deflater acquireDeflater() {
+		Deflater deflater = DEFLATER_POOL.poll();
+		return deflater == null ? new Deflater(Deflater.DEFAULT_COMPRESSION, true) : deflater;
+	}
+
+	private static void releaseDeflater(Deflater deflater) {
+		deflater.reset();
+		if (DEFLATER_POOL.size() < DEFLATER_POOL_SIZE) {
+			DEFLATER_POOL.offer(deflater);
+		} else {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * @return amount of idle Deflaters in the pool
+	 */
+	static int getPooledDeflaterCount() {
+		return DEFLATER_POOL.size();
+	}
+
+	/**
+	 * Writes the gzip format around a raw deflate stream, so the Deflater can
+	 * come from the pool rather than be created per response as
+	 * GZIPOutputStream does. The Deflater goes back to the pool once the
+	 * stream is finished, closed or abandoned, whether or not that succeeds.
+	 */
+	private static class PooledGzipOutputStream extends DeflaterOutputStream {
+
+		private final CRC32 crc = new CRC32();
+		private boolean finished = false;
+
+		PooledGzipOutputStream(OutputStream out) throws IOException {
+			super(out, acquireDeflater(), RESPONSE_BUFFER_SIZE);
+			try {
+				// Magic number, deflate, no flags, no modification time, no extra flags, unknown OS
+				out.write(new byte[]{(byte) 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff});
+			} catch (IOException | RuntimeException ex) {
+				abandon();
+				throw ex;
+			}
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[]{(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (finished) {
+				// The Deflater may already be compressing another response
+				throw new IOException("Compressed stream is finished");
+			}
+			super.write(b, off, len);
+			crc.update(b, off, len);
+		}
+
+		@Override
+		public void finish() throws IOException {
+			if (finished) {
+				return;
+			}
+			finished = true;
+			try {
+				super.finish();
+				long crcValue = crc.getValue();
+				long size = def.getBytesRead();
+				out.write(new byte[]{
+					(byte) crcValue, (byte) (crcValue >> 8), (byte) (crcValue >> 16), (byte) (crcValue >> 24),
+					(byte) size, (byte) (size >> 8), (byte) (size >> 16), (byte) (size >> 24)
+				});
+			} finally {
+				releaseDeflater(def);
+			}
+		}
+
+		/**
+		 * Returns the Deflater to the pool without writing the rest of the
+		 * stream, after writing to the underlying stream failed
+		 */
+		void abandon() {
+			if (!finished) {
+				finished = true;
+				releaseDeflater(def);
+			}
+		}
+	}
+
+	private static ResponseBuffer acquireBuffer() {
+		ResponseBuffer buffer = BUFFER_POOL.poll();
+		return buffer == null ? new ResponseBuffer() : buffer;
+	}
+
+	private static void releaseBuffer(ResponseBuffer buffer) {
+		buffer.release();
+		if (BUFFER_POOL.size() < BUFFER_POOL_SIZE) {
+			BUFFER_POOL.offer(buffer);
+		}
+	}
+
+	/**
+	 * Reusable buffer for response bodies, taken from the pool per response
+	 */
+	private static class ResponseBuffer extends ByteArrayOutputStream {
+
+		ResponseBuffer() {
+			super(RESPONSE_BUFFER_SIZE);
+		}
+
+		/**
+		 * Drops buffers grown past the initial size, so the pool does not
+		 * hold on to one large response
+		 */
+		void release() {
+			reset();
+			if (buf.length > RESPONSE_BUFFER_SIZE) {
+				buf = new byte[RESPONSE_BUFFER_SIZE];
+			}
+		}
+	}
+
+	/**
+	 * Buffers a response body so it can be sent with a Content-Length that
+	 * counts bytes rather than characters. Once the body outgrows the
+	 * maximum buffered response size, the buffered part is written out and
+	 * the rest is streamed to the client without a Content-Length.
+	 *
+	 * Bodies from the compression threshold on, and bodies too large to
+	 * buffer, are compressed with gzip if the client accepts it.
+	 */
+	static class ResponseBodyOutputStream extends OutputStream {
+
+		private final HttpServletResponse response;
+		private ResponseBuffer buffer = acquireBuffer();
+		private final int limit = maximumBufferedResponseSize;
+		private final int threshold = compressionThreshold;
+		private final boolean gzipAccepted;
+		private OutputStream out = null;
+		private boolean closed = false;
+
+		/**
+		 *
+		 * @param request Null value allowed. Will not compress
+		 * @param response
+		 */
+		ResponseBodyOutputStream(HttpServletRequest request, HttpServletResponse response) {
+			this.response = response;
+			this.gzipAccepted = request != null && acceptsGzip(request.getHeader("Accept-Encoding"));
+			if (request != null) {
+				response.addHeader("Vary", "Accept-Encoding");
+			}
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (!closed && out == null && buffer.size() + 1 <= limit) {
+				buffer.write(b);
+			} else {
+				write(new byte[]{(byte) b}, 0, 1);
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (closed) {
+				throw new IOException("Response body is closed");
+			}
+			if (out == null && buffer.size() + len <= limit) {
+				buffer.write(b, off, len);
+				return;
+			}
+			try {
+				if (out == null) {
+					spill();
+				}
+				out.write(b, off, len);
+			} catch (IOException | RuntimeException ex) {
+				// Writers such as OutputStreamWriter do not close the stream
+				// when their last write fails, so nothing may be left to close
+				abandon();
+				throw ex;
+			}
+		}
+
+		private void spill() throws IOException {
+			out = response.getOutputStream();
+			if (gzipAccepted) {
+				response.setHeader("Content-Encoding", "gzip");
+				out = new PooledGzipOutputStream(out);
+			}
+			buffer.writeTo(out);
+			releaseBuffer(buffer);
+			buffer = null;
+		}
+
+		private void abandon() {
+			closed = true;
+			if (out instanceof PooledGzipOutputStream) {
+				((PooledGzipOutputStream) out).abandon();
+			}
+			if (buffer != null) {
+				releaseBuffer(buffer);
+				buffer = null;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			try {
+				if (out == null) {
+					ResponseBuffer body = buffer;
+					try {
+						if (gzipAccepted && buffer.size() >= threshold) {
+							body = acquireBuffer();
+							try (PooledGzipOutputStream gzip = new PooledGzipOutputStream(body)) {
+								buffer.writeTo(gzip);
+							}
+							response.setHeader("Content-Encoding", "gzip");
+						}
+						response.setHeader("Content-Length", Integer.toString(body.size()));
+						out = response.getOutputStream();
+						body.writeTo(out);
+					} finally {
+						if (body != buffer) {
+							releaseBuffer(body);
+						}
+					}
+				} else if (out instanceof PooledGzipOutputStream) {
+					((PooledGzipOutputStream) out).finish();
+				}
+				out.flush();
+			} finally {
+				if (buffer != null) {
+					releaseBuffer(buffer);
+					buffer = null;
+				}
+			}
+		}
+	}
+
 	private RequestResponse() {
 	}
 }
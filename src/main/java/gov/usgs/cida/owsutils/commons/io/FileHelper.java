@@ -1,8 +1,10 @@
 package gov.usgs.cida.owsutils.commons.io;
 
 import gov.usgs.cida.owsutils.commons.io.exception.ShapefileFormatException;
+import gov.usgs.cida.owsutils.commons.io.exception.ZipLimitExceededException;
 import gov.usgs.cida.owsutils.commons.shapefile.utils.IterableShapefileReader;
-import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FileInputStream;
@@ -11,23 +13,61 @@ import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
+import java.util.Deque;
+import java.util.Enumeration;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.io.input.TeeInputStream;
+import org.apache.commons.io.output.NullOutputStream;
 import org.apache.commons.io.filefilter.RegexFileFilter;
 import org.apache.commons.io.filefilter.TrueFileFilter;
 import org.apache.commons.lang.StringUtils;
@@ -47,6 +87,51 @@ public class FileHelper extends FileUtils {
 	private static final String SUFFIX_SHX = ".shx";
 	private static final String SUFFIX_PRJ = ".prj";
 	private static final String SUFFIX_DBF = ".dbf";
+	private static final int BASE64_CHUNK_SIZE = 3 * 4096;
+	private static final int BASE64_SEGMENT_SIZE = 3 * 1024 * 1024;
+	private static final int UNZIP_BUFFER_SIZE = 8192;
+	private static final int SHARED_POOL_SIZE = Math.max(2, Runtime.getRuntime().availableProcessors());
+	// Runs the parallel overloads so they do not start and stop threads per call.
+	// Idle threads exit, so nothing is left running once the pool is unused.
+	private static final ThreadPoolExecutor SHARED_EXECUTOR = createSharedExecutor();
+	private static volatile ZipLimits zipLimits = ZipLimits.DEFAULT;
+
+	/**
+	 * Sets the limits enforced when zip archives are unzipped, flattened or
+	 * validated
+	 *
+	 * @param limits
+	 */
+	public static void setZipLimits(ZipLimits limits) {
+		if (limits == null) {
+			throw new IllegalArgumentException("Zip limits are required");
+		}
+		zipLimits = limits;
+	}
+
+	public static ZipLimits getZipLimits() {
+		return zipLimits;
+	}
+
+	private static ThreadPoolExecutor createSharedExecutor() {
+		final AtomicInteger threadNumber = new AtomicInteger();
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(SHARED_POOL_SIZE, SHARED_POOL_SIZE,
+				30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), runnable -> {
+					Thread thread = new Thread(runnable, "FileHelper IO " + threadNumber.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	/**
+	 * @return the bounded pool used by the parallel overloads that are not
+	 * given an executor. It is shared and must not be shut down.
+	 */
+	static ExecutorService getSharedExecutor() {
+		return SHARED_EXECUTOR;
+	}
 
 	/**
 	 * @see FileHelper#base64Encode(byte[])
@@ -82,6 +167,177 @@ public class FileHelper extends FileUtils {
 		return result;
 	}
 
+	/**
+	 * @see FileHelper#base64Encode(java.io.InputStream, java.io.OutputStream)
+	 * @param input
+	 * @param output
+	 * @throws IOException
+	 */
+	public static void base64Encode(final File input, final OutputStream output) throws IOException {
+		try (InputStream is = new FileInputStream(input)) {
+			FileHelper.base64Encode(is, output);
+		}
+	}
+
+	/**
+	 * @see FileHelper#base64Encode(java.io.InputStream, java.io.OutputStream)
+	 * @param input
+	 * @param output
+	 * @throws IOException
+	 */
+	public static void base64Encode(final File input, final Writer output) throws IOException {
+		try (InputStream is = new FileInputStream(input)) {
+			FileHelper.base64Encode(is, output);
+		}
+	}
+
+	/**
+	 * @see FileHelper#base64Encode(java.io.InputStream, java.io.OutputStream)
+	 * @param input
+	 * @param output
+	 * @throws IOException
+	 */
+	public static void base64Encode(final InputStream input, final Writer output) throws IOException {
+		FileHelper.base64Encode(input, new AsciiWriterOutputStream(output));
+	}
+
+	/**
+	 * Base64 encodes a stream in fixed size chunks, producing the same output
+	 * as {@link FileHelper#base64Encode(byte[])} without holding the input in
+	 * memory. Neither stream is closed.
+	 *
+	 * @param input
+	 * @param output
+	 * @throws IOException
+	 */
+	public static void base64Encode(final InputStream input, final OutputStream output) throws IOException {
+		// Chunks are a multiple of 3 bytes so no padding is produced until the final chunk
+		byte[] buffer = new byte[BASE64_CHUNK_SIZE];
+		int read;
+		while ((read = IOUtils.read(input, buffer)) > 0) {
+			output.write(Base64.encodeBase64(read == buffer.length ? buffer : Arrays.copyOf(buffer, read)));
+		}
+		output.flush();
+	}
+
+	/**
+	 * Base64 encodes a file by splitting it into 3 byte aligned segments that
+	 * are encoded concurrently on a shared pool and written out in order. No
+	 * more than threadCount segments are held in memory, whatever the file size.
+	 *
+	 * @param input
+	 * @param output Is not closed
+	 * @param threadCount maximum amount of segments encoded at once. Files that
+	 * fit in a single segment are encoded on the calling thread
+	 * @throws IOException
+	 */
+	public static void base64Encode(final File input, final OutputStream output, final int threadCount) throws IOException {
+		FileHelper.base64Encode(input, output, SHARED_EXECUTOR, threadCount);
+	}
+
+	/**
+	 * @see FileHelper#base64Encode(java.io.File, java.io.OutputStream, int)
+	 * @param input
+	 * @param output Is not closed
+	 * @param executor runs the segment encoding. It is not shut down
+	 * @param threadCount maximum amount of segments encoded at once
+	 * @throws IOException
+	 */
+	public static void base64Encode(final File input, final OutputStream output, final ExecutorService executor, final int threadCount) throws IOException {
+		if (executor == null) {
+			throw new IllegalArgumentException("Executor is required");
+		}
+		if (threadCount < 1) {
+			throw new IllegalArgumentException("Thread count must be at least 1");
+		}
+
+		final long length = input.length();
+		if (threadCount == 1 || length <= BASE64_SEGMENT_SIZE) {
+			FileHelper.base64Encode(input, output);
+			return;
+		}
+
+		Deque<Future<byte[]>> pending = new ArrayDeque<>();
+		try (FileChannel channel = FileChannel.open(input.toPath(), StandardOpenOption.READ)) {
+			for (long position = 0; position < length; position += BASE64_SEGMENT_SIZE) {
+				final long segmentPosition = position;
+				final int segmentLength = (int) Math.min(BASE64_SEGMENT_SIZE, length - position);
+				pending.add(executor.submit(() -> {
+					ByteBuffer segment = ByteBuffer.allocate(segmentLength);
+					while (segment.hasRemaining()) {
+						if (channel.read(segment, segmentPosition + segment.position()) < 0) {
+							throw new EOFException("File " + input.getPath() + " was truncated while being encoded");
+						}
+					}
+					return Base64.encodeBase64(segment.array());
+				}));
+
+				// Bound the amount of segments being encoded or waiting to be written
+				if (pending.size() >= threadCount) {
+					output.write(getResult(pending.poll()));
+				}
+			}
+			while (!pending.isEmpty()) {
+				output.write(getResult(pending.poll()));
+			}
+			output.flush();
+		} finally {
+			// Only left over when writing failed
+			for (Future<byte[]> segment : pending) {
+				segment.cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * Waits on a background IO task, unwrapping any IOException it threw
+	 *
+	 * @param <T>
+	 * @param result
+	 * @return
+	 * @throws IOException
+	 */
+	static <T> T getResult(Future<T> result) throws IOException {
+		try {
+			return result.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting on background IO");
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof IOException) {
+				throw (IOException) ex.getCause();
+			}
+			throw new IOException("Background IO failed", ex.getCause());
+		}
+	}
+
+	/**
+	 * Passes base64 output, which is plain ASCII, through to a Writer
+	 */
+	private static class AsciiWriterOutputStream extends OutputStream {
+
+		private final Writer writer;
+
+		AsciiWriterOutputStream(Writer writer) {
+			this.writer = writer;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			writer.write(b & 0xFF);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			writer.write(new String(b, off, len, StandardCharsets.US_ASCII));
+		}
+
+		@Override
+		public void flush() throws IOException {
+			writer.flush();
+		}
+	}
+
 	/**
 	 * Reads a file into a byte array
 	 *
@@ -98,7 +354,7 @@ public class FileHelper extends FileUtils {
 
 		// Maximum size of file cannot be larger than the Integer.MAX_VALUE
 		if (file.length() > Integer.MAX_VALUE) {
-			throw new IOException("File is too large: File length: " + file.length() + " bytes. Maximum length: " + Integer.MAX_VALUE + " bytes.");
+			throw new IOException("File is too large: File length: " + file.length() + " bytes. Maximum length: " + Integer.MAX_VALUE + " bytes. Use FileHelper.mapFile for larger files.");
 		}
 
 		// Create the byte array to hold the data
@@ -112,6 +368,51 @@ public class FileHelper extends FileUtils {
 		return bytes;
 	}
 
+	/**
+	 * @see FileHelper#mapFile(java.io.File, int)
+	 * @param file
+	 * @return read only views of the file, each up to Integer.MAX_VALUE bytes
+	 * @throws IOException
+	 */
+	public static MappedByteBuffer[] mapFile(File file) throws IOException {
+		return FileHelper.mapFile(file, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Memory maps a file as read only views without copying it onto the heap.
+	 * Unlike {@link FileHelper#getByteArrayFromFile(java.io.File)} this works
+	 * for files over Integer.MAX_VALUE bytes, which are split into consecutive
+	 * segments. The views remain valid after this method returns.
+	 *
+	 * @param file
+	 * @param segmentSize maximum amount of bytes in each view
+	 * @return views of the file in order, empty for a null or empty file
+	 * @throws IOException
+	 */
+	public static MappedByteBuffer[] mapFile(File file, int segmentSize) throws IOException {
+		if (segmentSize < 1) {
+			throw new IllegalArgumentException("Segment size must be at least 1 byte");
+		}
+
+		if (file == null) {
+			return new MappedByteBuffer[0];
+		}
+
+		log.debug(new StringBuilder("Attempting to map file: ").append(file.getPath()).toString());
+
+		MappedByteBuffer[] segments;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			segments = new MappedByteBuffer[(int) ((size + segmentSize - 1) / segmentSize)];
+			for (int sIdx = 0; sIdx < segments.length; sIdx++) {
+				long position = (long) sIdx * segmentSize;
+				segments[sIdx] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(segmentSize, size - position));
+			}
+		}
+
+		return segments;
+	}
+
 	/**
 	 * @see FileHelper#renameDirectoryContents(java.io.File, java.lang.String)
 	 * @param directory
@@ -224,40 +525,84 @@ public class FileHelper extends FileUtils {
 	}
 
 	/**
-	 * Delete files older than a given Long instance
+	 * Copies a shapefile archive to a file while checking the entries as they
+	 * stream past, as {@link FileHelper#validateShapefileZip(java.io.File)}
+	 * would once the file is written. Malformed archives and archives holding
+	 * more than one shapefile are rejected as soon as that is known, without
+	 * reading the rest of the stream. The file is deleted if the archive is
+	 * rejected.
 	 *
+	 * @param is
+	 * @param destinationFile
+	 * @throws IOException
+	 * @throws ZipLimitExceededException if inflating the archive would go
+	 * past the zip limits
+	 * @throws ShapefileFormatException
+	 */
+	public static void copyAndValidateShapefileZip(InputStream is, File destinationFile) throws IOException, ShapefileFormatException {
+		boolean valid = false;
+		try (OutputStream os = new BufferedOutputStream(new FileOutputStream(destinationFile))) {
+			// Every byte the zip reader pulls from the upload is written to the file
+			CountingInputStream tee = new CountingInputStream(new TeeInputStream(is, os));
+			List<String> fileNames = new ArrayList<>();
+			int shpCount = 0;
+			ZipLimits.Guard guard = zipLimits.newGuard();
+			ZipInputStream zis = new ZipInputStream(tee);
+			ZipEntry entry;
+			while ((entry = zis.getNextEntry()) != null) {
+				guard.addEntry(entry);
+				String entryName = entry.getName();
+				if (!entry.isDirectory()
+						&& !entryName.startsWith(".")
+						&& !entryName.contains("/")) {
+					fileNames.add(entryName);
+					if (entryName.endsWith(SUFFIX_SHP) && ++shpCount > 1) {
+						throw new ShapefileFormatException("Shapefile archive may only contain one shapefile");
+					}
+				}
+				// Inflate the entry through the guard rather than letting the
+				// zip reader skip over it unchecked
+				final long entryStart = tee.getByteCount();
+				IOUtils.copyLarge(guard.guard(entry, zis, () -> tee.getByteCount() - entryStart), NullOutputStream.NULL_OUTPUT_STREAM);
+			}
+
+			// The central directory follows the last entry
+			IOUtils.copyLarge(tee, NullOutputStream.NULL_OUTPUT_STREAM);
+			validateShapefileFileNames(fileNames);
+			valid = true;
+		} catch (ZipException ex) {
+			throw new ShapefileFormatException("Shapefile archive is not a valid zip file: " + ex.getMessage());
+		} finally {
+			if (!valid) {
+				deleteQuietly(destinationFile);
+			}
+		}
+	}
+
+	/**
+	 * Delete files older than a given Long instance. Directories left empty
+	 * are deleted after their contents.
+	 *
+	 * @see FileJanitor for sweeping large trees, in parallel or on a schedule,
+	 * without collecting the deleted files
 	 * @param directory Directory within which to search.
 	 * @param cutoffTime
 	 * @param deleteDirectory Also delete the directory given in the directory
-	 * param
+	 * param once it is empty
 	 * @return files that were deleted
 	 */
 	public static Collection<File> wipeOldFiles(File directory, Long cutoffTime, boolean deleteDirectory) {
+		final Collection<File> result = new ArrayList<>();
 		if (directory == null || !directory.exists()) {
-			return new ArrayList<>();
+			return result;
 		}
 
-		Collection<File> result = new ArrayList<>();
-		Collection<File> oldFiles = FileHelper.getFilesOlderThan(directory, cutoffTime, Boolean.TRUE);
-		for (File file : oldFiles) {
-			String logString = "Deleting File: \"" + file.toString() + "\" ... ";
-
-			if (file.canWrite() && file.delete()) {
-				logString += "done. ";
-				result.add(file);
-				if (file.getParentFile().isDirectory()) {
-					if (file.getParentFile() != directory && file.getParentFile().delete()) {
-						log.info("Deleting Directory: \"" + file.getParent() + "\" ...  done");
-					} else if (file.getParentFile() == directory && deleteDirectory) {
-						log.info("Deleting Directory: \"" + file.getParent() + "\" ...  done");
-					}
-				}
-			} else {
-				logString += "FAILED!";
-			}
-			log.info(logString);
+		try {
+			FileJanitor.Result sweep = new FileJanitor(directory, cutoffTime, deleteDirectory, 1).sweep(file -> result.add(file.toFile()));
+			log.info("Wiped old files from {}: {}", directory, sweep);
+		} catch (IOException ex) {
+			log.warn("Could not wipe old files from " + directory, ex);
 		}
-
 		return result;
 	}
 
@@ -384,27 +729,100 @@ public class FileHelper extends FileUtils {
 	/**
 	 * Attempts to find a file by recursively going through a given directory
 	 *
+	 * @see FileHelper#findPath(java.lang.String, java.nio.file.Path)
 	 * @param file The file that is being searched for
 	 * @param rootPath The path to begin looking from
 	 * @return the first file that was found
 	 */
 	public static File findFile(String file, String rootPath) {
-		if (rootPath == null || "".equals(rootPath)) {
+		if (rootPath == null || "".equals(rootPath) || !new File(rootPath).isDirectory()) {
 			return null;
 		}
-		File result = null;
-		Collection<File> fileCollection = listFiles(new File(rootPath), new String[]{file.substring(file.lastIndexOf('.') + 1)}, true);
-		if (fileCollection.isEmpty()) {
-			return result;
+		try {
+			Optional<Path> result = findPath(file, Paths.get(rootPath));
+			return result.isPresent() ? result.get().toFile() : null;
+		} catch (IOException | UncheckedIOException ex) {
+			log.warn("Could not search " + rootPath + " for " + file, ex);
+			return null;
 		}
-		Iterator<File> fileCollectionIterator = fileCollection.iterator();
-		while (fileCollectionIterator.hasNext()) {
-			File testFile = fileCollectionIterator.next();
-			if (file.equals(testFile.getName())) {
-				result = testFile;
+	}
+
+	/**
+	 * Finds a file by name under a directory, stopping at the first match
+	 *
+	 * @param fileName The name of the file that is being searched for
+	 * @param root The directory to begin looking from
+	 * @return the first file that was found
+	 * @throws IOException if root can not be read
+	 * @throws UncheckedIOException if a directory under root can not be read
+	 */
+	public static Optional<Path> findPath(final String fileName, Path root) throws IOException {
+		try (Stream<Path> found = Files.find(root, Integer.MAX_VALUE, (path, attrs) -> attrs.isRegularFile() && path.getFileName().toString().equals(fileName))) {
+			return found.findFirst();
+		}
+	}
+
+	/**
+	 * Lazily lists the files under a directory, reading directories only as
+	 * far as the stream is consumed. The stream holds open directories and
+	 * must be closed, as in a try-with-resources statement.
+	 *
+	 * @see FileHelper#getFileCollection(java.lang.String, java.lang.String[],
+	 * boolean)
+	 * @param directory the directory to begin looking through
+	 * @param extensions a list of extensions to match on, without the dot.
+	 * Null value allowed. Will match all files
+	 * @param recursive whether or not the function should look only at base
+	 * level or recursively
+	 * @return regular files found under the directory
+	 * @throws IOException if the directory can not be read
+	 */
+	public static Stream<Path> streamFiles(Path directory, String[] extensions, boolean recursive) throws IOException {
+		final String[] suffixes = toSuffixes(extensions);
+		return Files.find(directory, recursive ? Integer.MAX_VALUE : 1, (path, attrs) -> attrs.isRegularFile() && hasSuffix(path, suffixes));
+	}
+
+	/**
+	 * Lazily lists the files under a directory last modified longer ago than
+	 * an age. The modification time comes with the attributes read while
+	 * walking the directory. The stream must be closed.
+	 *
+	 * @see FileHelper#getFilesOlderThan(java.io.File, java.lang.Long,
+	 * java.lang.Boolean)
+	 * @param directory the directory to begin looking through
+	 * @param age in milliseconds
+	 * @param recursive whether or not the function should look only at base
+	 * level or recursively
+	 * @return regular files older than age
+	 * @throws IOException if the directory can not be read
+	 */
+	public static Stream<Path> streamFilesOlderThan(Path directory, long age, boolean recursive) throws IOException {
+		final long cutoff = System.currentTimeMillis() - age;
+		return Files.find(directory, recursive ? Integer.MAX_VALUE : 1, (path, attrs) -> attrs.isRegularFile() && attrs.lastModifiedTime().toMillis() < cutoff);
+	}
+
+	private static String[] toSuffixes(String[] extensions) {
+		if (extensions == null) {
+			return null;
+		}
+		String[] suffixes = new String[extensions.length];
+		for (int eIdx = 0; eIdx < extensions.length; eIdx++) {
+			suffixes[eIdx] = "." + extensions[eIdx];
+		}
+		return suffixes;
+	}
+
+	private static boolean hasSuffix(Path path, String[] suffixes) {
+		if (suffixes == null) {
+			return true;
+		}
+		String name = path.getFileName().toString();
+		for (String suffix : suffixes) {
+			if (name.endsWith(suffix)) {
+				return true;
 			}
 		}
-		return result;
+		return false;
 	}
 
 	/**
@@ -425,6 +843,8 @@ public class FileHelper extends FileUtils {
 	/**
 	 * Get recursive directory listing
 	 *
+	 * @see FileHelper#streamFiles(java.nio.file.Path, java.lang.String[],
+	 * boolean)
 	 * @param filePath the path to begin looking through
 	 * @param extensions a list of extensions to match on
 	 * @param recursive whether or not the function should look only at base
@@ -464,7 +884,7 @@ public class FileHelper extends FileUtils {
 	/**
 	 * Returns a Collection of type File
 	 *
-	 * @see FileHelper#getFileCollection(java.lang.String, java.lang.String[],
+	 * @see FileHelper#streamFiles(java.nio.file.Path, java.lang.String[],
 	 * boolean)
 	 * @param filePath the path to begin looking through
 	 * @param extensions a list of extensions to match on
@@ -507,11 +927,19 @@ public class FileHelper extends FileUtils {
 	}
 
 	/**
-	 * Brings all subdirectories in zip file up to the top level
+	 * Brings all subdirectories in zip file up to the top level. Entries are
+	 * renamed and their compressed bytes copied as is into a new archive next
+	 * to the original, which then atomically replaces the original. Entries are
+	 * skipped and flattened following the rules of
+	 * {@link FileHelper#unzipFile(java.lang.String, java.io.File)}. As no entry
+	 * is inflated, the zip limits are checked against the sizes the entries
+	 * declare.
 	 *
 	 * @param zipFileLocation
 	 * @return flattened zip file
 	 * @throws IOException
+	 * @throws ZipLimitExceededException if the archive declares more than the
+	 * zip limits allow
 	 */
 	public static File flattenZipFile(String zipFileLocation) throws IOException {
 		File zipFile = new File(zipFileLocation);
@@ -527,17 +955,46 @@ public class FileHelper extends FileUtils {
 			throw new IOException("File at location " + zipFileLocation + " must be readable and writable");
 		}
 
-		File temporaryDirectory = new File(getTempDirectory(), UUID.randomUUID().toString() + "-deleteme");
+		File flattenedZipFile = new File(zipFile.getAbsoluteFile().getParentFile(), "." + zipFile.getName() + "." + UUID.randomUUID().toString() + "-deleteme");
 		try {
-			if (!temporaryDirectory.mkdirs()) {
-				throw new IOException("Could not create temporary directory (" + temporaryDirectory.getCanonicalPath() + ") for processing");
+			try (org.apache.commons.compress.archivers.zip.ZipFile zip = new org.apache.commons.compress.archivers.zip.ZipFile(zipFile)) {
+				// When entries flatten to the same name, the last one in the zip wins
+				Map<String, ZipArchiveEntry> destinations = new LinkedHashMap<>();
+				ZipLimits.Guard guard = zipLimits.newGuard();
+				Enumeration<ZipArchiveEntry> entries = zip.getEntries();
+				while (entries.hasMoreElements()) {
+					ZipArchiveEntry entry = entries.nextElement();
+					guard.addEntry(entry);
+					String destinationFileName = getUnzippedFileName(entry);
+					if (destinationFileName != null) {
+						destinations.remove(destinationFileName);
+						destinations.put(destinationFileName, entry);
+					}
+				}
+
+				try (ZipArchiveOutputStream zos = new ZipArchiveOutputStream(flattenedZipFile)) {
+					for (Map.Entry<String, ZipArchiveEntry> destination : destinations.entrySet()) {
+						ZipArchiveEntry entry = destination.getValue();
+						ZipArchiveEntry flattenedEntry = new ZipArchiveEntry(destination.getKey());
+						flattenedEntry.setMethod(entry.getMethod());
+						flattenedEntry.setCrc(entry.getCrc());
+						flattenedEntry.setSize(entry.getSize());
+						flattenedEntry.setCompressedSize(entry.getCompressedSize());
+						flattenedEntry.setTime(entry.getTime());
+						try (InputStream raw = zip.getRawInputStream(entry)) {
+							zos.addRawArchiveEntry(flattenedEntry, raw);
+						}
+					}
+				}
 			}
 
-			unzipFile(temporaryDirectory.getPath(), zipFile);
-			FileUtils.deleteQuietly(zipFile);
-			zipFilesInDirectory(temporaryDirectory, zipFile);
+			try {
+				Files.move(flattenedZipFile.toPath(), zipFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException ex) {
+				Files.move(flattenedZipFile.toPath(), zipFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
 		} finally {
-			forceDelete(temporaryDirectory);
+			deleteQuietly(flattenedZipFile);
 		}
 
 		return zipFile;
@@ -582,22 +1039,36 @@ public class FileHelper extends FileUtils {
 	 * @return
 	 * @throws FileNotFoundException
 	 * @throws IOException
+	 * @throws ZipLimitExceededException if unzipping would go past the zip
+	 * limits. The entry being unzipped at that point is removed.
 	 */
 	public static boolean unzipFile(String outputDirectory, File zipFile) throws FileNotFoundException, IOException {
-		FileInputStream fis = new FileInputStream(zipFile);
+		final CountingInputStream fis = new CountingInputStream(new FileInputStream(zipFile));
 		ZipInputStream zis = null;
 		FileOutputStream fos = null;
 		try {
 			zis = new ZipInputStream(fis);
+			ZipLimits.Guard guard = zipLimits.newGuard();
 			ZipEntry entry;
 			while ((entry = zis.getNextEntry()) != null) {
-				// Get the final filename (even if it's within directories in the ZIP file)
-				if (!entry.isDirectory() && !entry.getName().startsWith(".") && !entry.getName().contains(File.separator + ".") && !entry.getName().toLowerCase(Locale.getDefault()).contains("macosx")) {
-					String destinationFileName = entry.getName().contains(File.separator) ? entry.getName().substring(entry.getName().lastIndexOf(File.separator) + 1) : entry.getName();
-					String destinationPath = outputDirectory + java.io.File.separator + destinationFileName;
-					fos = new FileOutputStream(destinationPath);
-					IOUtils.copyLarge(zis, fos);
+				guard.addEntry(entry);
+				final long entryStart = fis.getByteCount();
+				InputStream guarded = guard.guard(entry, zis, () -> fis.getByteCount() - entryStart);
+				String destinationFileName = getUnzippedFileName(entry);
+				if (destinationFileName != null) {
+					File destinationFile = new File(outputDirectory + java.io.File.separator + destinationFileName);
+					fos = new FileOutputStream(destinationFile);
+					try {
+						IOUtils.copyLarge(guarded, fos);
+					} catch (ZipLimitExceededException ex) {
+						IOUtils.closeQuietly(fos);
+						deleteQuietly(destinationFile);
+						throw ex;
+					}
 					IOUtils.closeQuietly(fos);
+				} else {
+					// Skipped entries are inflated all the same
+					IOUtils.copyLarge(guarded, NullOutputStream.NULL_OUTPUT_STREAM);
 				}
 			}
 		} finally {
@@ -607,6 +1078,144 @@ public class FileHelper extends FileUtils {
 		return true;
 	}
 
+	/**
+	 * Takes a zip file and unzips it to a outputDirectory, inflating entries
+	 * concurrently. Uses the same rules as
+	 * {@link FileHelper#unzipFile(java.lang.String, java.io.File)} for which
+	 * entries are skipped and how they are flattened.
+	 *
+	 * @param outputDirectory
+	 * @param zipFile
+	 * @param threadCount maximum amount of entries inflated at once
+	 * @return
+	 * @throws IOException
+	 * @throws ZipLimitExceededException if unzipping would go past the zip
+	 * limits. Entries being unzipped at that point are removed, and entries
+	 * not started yet are skipped.
+	 */
+	public static boolean unzipFile(String outputDirectory, File zipFile, int threadCount) throws IOException {
+		return FileHelper.unzipFile(outputDirectory, zipFile, SHARED_EXECUTOR, threadCount);
+	}
+
+	/**
+	 * @see FileHelper#unzipFile(java.lang.String, java.io.File, int)
+	 * @param outputDirectory
+	 * @param zipFile
+	 * @param executor inflates the entries. It is not shut down
+	 * @param threadCount maximum amount of entries inflated at once
+	 * @return
+	 * @throws IOException
+	 */
+	public static boolean unzipFile(String outputDirectory, File zipFile, ExecutorService executor, int threadCount) throws IOException {
+		if (executor == null) {
+			throw new IllegalArgumentException("Executor is required");
+		}
+		if (threadCount < 1) {
+			throw new IllegalArgumentException("Thread count must be at least 1");
+		}
+
+		try (ZipFile zip = new ZipFile(zipFile)) {
+			// When entries flatten to the same name, the last one in the zip wins,
+			// as it does when unzipping sequentially
+			Map<String, ZipEntry> destinations = new LinkedHashMap<>();
+			final ZipLimits.Guard guard = zipLimits.newGuard();
+			Enumeration<? extends ZipEntry> entries = zip.entries();
+			while (entries.hasMoreElements()) {
+				ZipEntry entry = entries.nextElement();
+				guard.addEntry(entry);
+				String destinationFileName = getUnzippedFileName(entry);
+				if (destinationFileName != null) {
+					destinations.remove(destinationFileName);
+					destinations.put(destinationFileName, entry);
+				}
+			}
+
+			// Each worker takes entries until none are left, so no more than
+			// threadCount entries are inflated at once whatever the executor
+			final Queue<Map.Entry<String, ZipEntry>> remaining = new ConcurrentLinkedQueue<>(destinations.entrySet());
+			final AtomicBoolean failed = new AtomicBoolean(false);
+			IOException failure = null;
+			List<Future<Void>> results = new ArrayList<>(threadCount);
+			try {
+				for (int worker = 0; worker < Math.min(threadCount, destinations.size()); worker++) {
+					results.add(executor.submit(() -> {
+						Map.Entry<String, ZipEntry> destination;
+						while (!failed.get() && (destination = remaining.poll()) != null) {
+							final File destinationFile = new File(outputDirectory, destination.getKey());
+							final ZipEntry entry = destination.getValue();
+							try (InputStream is = guard.guard(entry, zip.getInputStream(entry), () -> entry.getCompressedSize())) {
+								boolean complete = false;
+								FileOutputStream fos = new FileOutputStream(destinationFile);
+								try {
+									byte[] buffer = new byte[UNZIP_BUFFER_SIZE];
+									int read;
+									while ((read = is.read(buffer)) != -1) {
+										if (failed.get()) {
+											// Another entry failed, this one is given up
+											return null;
+										}
+										fos.write(buffer, 0, read);
+									}
+									fos.close();
+									complete = true;
+								} finally {
+									IOUtils.closeQuietly(fos);
+									if (!complete) {
+										deleteQuietly(destinationFile);
+									}
+								}
+							} catch (IOException | RuntimeException ex) {
+								failed.set(true);
+								throw ex;
+							}
+						}
+						return null;
+					}));
+				}
+				// Every worker is done with the zip before it is closed
+				for (Future<Void> result : results) {
+					try {
+						getResult(result);
+					} catch (InterruptedIOException ex) {
+						failed.set(true);
+						throw ex;
+					} catch (IOException ex) {
+						failed.set(true);
+						if (failure == null) {
+							failure = ex;
+						}
+					}
+				}
+			} finally {
+				for (Future<Void> result : results) {
+					result.cancel(true);
+				}
+			}
+			if (failure != null) {
+				throw failure;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Get the final filename (even if it's within directories in the ZIP file)
+	 *
+	 * @param entry
+	 * @return the flattened file name, or null for directories, hidden files
+	 * and metadata files (MACOSX ZIPPING FIX)
+	 */
+	private static String getUnzippedFileName(ZipEntry entry) {
+		String entryName = entry.getName();
+		if (entry.isDirectory()
+				|| entryName.startsWith(".")
+				|| entryName.contains(File.separator + ".")
+				|| entryName.toLowerCase(Locale.getDefault()).contains("macosx")) {
+			return null;
+		}
+		return entryName.contains(File.separator) ? entryName.substring(entryName.lastIndexOf(File.separator) + 1) : entryName;
+	}
+
 	/**
 	 * Creates a unique user directory
 	 *
@@ -664,6 +1273,7 @@ public class FileHelper extends FileUtils {
 	/**
 	 * Returns files and directories older that a specified date
 	 *
+	 * @see FileHelper#streamFilesOlderThan(java.nio.file.Path, long, boolean)
 	 * @param filePath System path to the directory
 	 * @param age
 	 * @param recursive
@@ -723,52 +1333,84 @@ public class FileHelper extends FileUtils {
 		return shpCount + shxCount + prjCount <= 3;
 	}
 
+	/**
+	 * Validates a zipped shapefile without extracting it. Only the zip central
+	 * directory is read, so no entry is inflated and nothing is written to
+	 * disk. The zip limits are checked against the sizes the entries declare.
+	 *
+	 * @param shapeZip
+	 * @throws IOException
+	 * @throws ZipLimitExceededException if the archive declares more than the
+	 * zip limits allow
+	 * @throws ShapefileFormatException
+	 */
 	public static void validateShapefileZip(final File shapeZip) throws IOException, ShapefileFormatException {
-		File temporaryDirectory = new File(getTempDirectory(), UUID.randomUUID().toString() + "-deleteme");
-		try {
-			if (!temporaryDirectory.mkdirs()) {
-				throw new IOException("Could not create temporary directory (" + temporaryDirectory.getCanonicalPath() + ") for processing");
+		List<String> fileNames = new ArrayList<>();
+		try (ZipFile zipFile = new ZipFile(shapeZip)) {
+			ZipLimits.Guard guard = zipLimits.newGuard();
+			Enumeration<? extends ZipEntry> entries = zipFile.entries();
+			while (entries.hasMoreElements()) {
+				ZipEntry entry = entries.nextElement();
+				guard.addEntry(entry);
+				String entryName = entry.getName();
+				// We want to skip past directories, hidden files and metadata files (MACOSX ZIPPING FIX).
+				// Files inside of another dir are skipped as well. Shapefiles inside with arbitrary 
+				// directory depth should first be preprocessed to be single-depth since GS will 
+				// not accept it otherwise
+				if (!entry.isDirectory()
+						&& !entryName.startsWith(".")
+						&& !entryName.contains("/")) {
+					fileNames.add(entryName);
+				}
 			}
+		}
+		validateShapefileFileNames(fileNames);
+	}
 
-			try (ZipInputStream zipInputStream = new ZipInputStream(new BufferedInputStream(new FileInputStream(shapeZip)))) {
-				ZipEntry entry;
-				while ((entry = zipInputStream.getNextEntry()) != null) {
-					String currentExtension = entry.getName();
-					// We want to skip past directories, hidden files and metadata files (MACOSX ZIPPING FIX)
-					if (!entry.isDirectory()
-							&& !currentExtension.startsWith(".")
-							&& !currentExtension.contains(File.separator + ".")) {
-						File currentFile = new File(temporaryDirectory, currentExtension);
-
-						try {
-							currentFile.createNewFile();
-							try (FileOutputStream fos = new FileOutputStream(currentFile)) {
-								IOUtils.copy(zipInputStream, fos);
-							}
-						} catch (IOException ioe) {
-							// This usually occurs because this file is inside of another dir
-							// so skip this file. Shapefiles inside with arbitrary directory 
-							// depth should first be preprocessed to be single-depth since 
-							// GS will not accept it otherwise
-						}
-					}
-				}
+	/**
+	 * Applies the shapefile archive rules to the names of the top level files
+	 * in an archive
+	 *
+	 * @param fileNames
+	 * @throws ShapefileFormatException
+	 */
+	static void validateShapefileFileNames(final Collection<String> fileNames) throws ShapefileFormatException {
+		List<String> shapefiles = new ArrayList<>();
+		int shxCount = 0;
+		int prjCount = 0;
+		for (String fileName : fileNames) {
+			if (fileName.endsWith(SUFFIX_SHP)) {
+				shapefiles.add(fileName);
+			} else if (fileName.endsWith(SUFFIX_SHX)) {
+				shxCount++;
+			} else if (fileName.endsWith(SUFFIX_PRJ)) {
+				prjCount++;
 			}
+		}
+
+		if (shapefiles.isEmpty()) {
+			throw new ShapefileFormatException("Shapefile archive needs to contain at least one shapefile");
+		} else if (shapefiles.size() > 1) {
+			throw new ShapefileFormatException("Shapefile archive may only contain one shapefile");
+		}
 
-			File[] shapefiles = listFiles(temporaryDirectory, (new String[]{"shp"}), false).toArray(new File[0]);
-			if (shapefiles.length == 0) {
-				throw new ShapefileFormatException("Shapefile archive needs to contain at least one shapefile");
-			} else if (shapefiles.length > 1) {
-				throw new ShapefileFormatException("Shapefile archive may only contain one shapefile");
-			} else if (!validateShapeFile(shapefiles[0])) {
+		// Make sure required files are present
+		String shapefileName = shapefiles.get(0);
+		String shapefileNamePrefix = shapefileName.substring(0, shapefileName.lastIndexOf('.'));
+		String[] requiredFiles = {SUFFIX_SHP, SUFFIX_SHX, SUFFIX_PRJ, SUFFIX_DBF};
+		for (String requiredFile : requiredFiles) {
+			if (!fileNames.contains(shapefileNamePrefix + requiredFile)) {
 				throw new ShapefileFormatException("Shapefile archive is not valid");
 			}
-			File[] prjfiles = FileHelper.listFiles(temporaryDirectory, (new String[]{"prj"}), false).toArray(new File[0]);
-			if (prjfiles.length != 1) {
-				throw new ShapefileFormatException("Shapefile archive needs to contain one prj file");
-			}
-		} finally {
-			forceDelete(temporaryDirectory);
+		}
+
+		// Ensure we only have one shapefile inside this zip (extra project specific dbf files are allowed)
+		if (shapefiles.size() + shxCount + prjCount > 3) {
+			throw new ShapefileFormatException("Shapefile archive is not valid");
+		}
+
+		if (prjCount != 1) {
+			throw new ShapefileFormatException("Shapefile archive needs to contain one prj file");
 		}
 	}
 
@@ -0,0 +1,428 @@
+package gov.usgs.cida.owsutils.commons.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Deletes files older than a maximum age from a directory tree, deciding and
+ * deleting as it walks the tree rather than listing the old files first.
+ * Directories are deleted after their contents once nothing is left in them,
+ * if something was deleted from them or they are old themselves.
+ *
+ * Each subdirectory of the swept directory may be walked by a worker of its
+ * own. A sweep logs a single line with what it deleted.
+ *
+ * @see FileHelper#wipeOldFiles(java.io.File, java.lang.Long, boolean)
+ */
+public class FileJanitor implements AutoCloseable {
+
+	private static final org.slf4j.Logger LOGGER = LoggerFactory.getLogger(FileJanitor.class);
+
+	private final Path directory;
+	private final long maximumAgeMillis;
+	private final boolean deleteDirectory;
+	private final int threadCount;
+	private final ExecutorService executor;
+	private ScheduledExecutorService scheduler = null;
+	private volatile Result lastResult = null;
+
+	/**
+	 * What a sweep deleted
+	 */
+	public static class Result {
+
+		private final long filesDeleted;
+		private final long directoriesDeleted;
+		private final long bytesDeleted;
+		private final long failures;
+		private final long elapsedMillis;
+
+		Result(long filesDeleted, long directoriesDeleted, long bytesDeleted, long failures, long elapsedMillis) {
+			this.filesDeleted = filesDeleted;
+			this.directoriesDeleted = directoriesDeleted;
+			this.bytesDeleted = bytesDeleted;
+			this.failures = failures;
+			this.elapsedMillis = elapsedMillis;
+		}
+
+		public long getFilesDeleted() {
+			return filesDeleted;
+		}
+
+		public long getDirectoriesDeleted() {
+			return directoriesDeleted;
+		}
+
+		public long getBytesDeleted() {
+			return bytesDeleted;
+		}
+
+		/**
+		 * @return amount of files and directories that could not be read or
+		 * deleted
+		 */
+		public long getFailures() {
+			return failures;
+		}
+
+		public long getElapsedMillis() {
+			return elapsedMillis;
+		}
+
+		@Override
+		public String toString() {
+			return filesDeleted + " files (" + bytesDeleted + " bytes) and " + directoriesDeleted + " directories deleted, "
+					+ failures + " failures, in " + elapsedMillis + " ms";
+		}
+	}
+
+	/**
+	 *
+	 * @param directory Directory within which to delete
+	 * @param maximumAgeMillis Files last modified longer ago than this are
+	 * deleted
+	 * @param deleteDirectory Also delete the directory given in the directory
+	 * param once it is empty
+	 * @param threadCount maximum amount of subdirectories swept at once, on
+	 * the pool shared with {@link FileHelper}
+	 */
+	public FileJanitor(File directory, long maximumAgeMillis, boolean deleteDirectory, int threadCount) {
+		this(directory, maximumAgeMillis, deleteDirectory, FileHelper.getSharedExecutor(), threadCount);
+	}
+
+	/**
+	 *
+	 * @param directory Directory within which to delete
+	 * @param maximumAgeMillis Files last modified longer ago than this are
+	 * deleted
+	 * @param deleteDirectory Also delete the directory given in the directory
+	 * param once it is empty
+	 * @param executor sweeps the subdirectories when threadCount is above 1.
+	 * It is not shut down
+	 * @param threadCount maximum amount of subdirectories swept at once
+	 */
+	public FileJanitor(File directory, long maximumAgeMillis, boolean deleteDirectory, ExecutorService executor, int threadCount) {
+		if (directory == null) {
+			throw new IllegalArgumentException("A directory is required");
+		}
+		if (executor == null) {
+			throw new IllegalArgumentException("An executor is required");
+		}
+		if (threadCount < 1) {
+			throw new IllegalArgumentException("Thread count must be at least 1");
+		}
+		this.directory = directory.toPath();
+		this.maximumAgeMillis = maximumAgeMillis;
+		this.deleteDirectory = deleteDirectory;
+		this.executor = executor;
+		this.threadCount = threadCount;
+	}
+
+	/**
+	 * Sweeps the directory once
+	 *
+	 * @return
+	 * @throws IOException if the sweep was interrupted
+	 */
+	public Result sweep() throws IOException {
+		Result result = sweep(null);
+		LOGGER.info("Swept {}: {}", directory, result);
+		return result;
+	}
+
+	/**
+	 * @param deletedFiles called with every file deleted, from the worker
+	 * that deleted it. Null value allowed.
+	 * @return
+	 * @throws IOException if the sweep was interrupted
+	 */
+	Result sweep(Consumer<Path> deletedFiles) throws IOException {
+		long start = System.nanoTime();
+		Counters counters = new Counters();
+		if (Files.isDirectory(directory)) {
+			long cutoff = System.currentTimeMillis() - maximumAgeMillis;
+			RootVisitor rootVisitor = new RootVisitor(cutoff, counters, deletedFiles, threadCount > 1);
+			Files.walkFileTree(directory, EnumSet.noneOf(FileVisitOption.class), 1, rootVisitor);
+			sweepSubtrees(rootVisitor.subtrees, cutoff, counters, deletedFiles);
+			if (deleteDirectory) {
+				if (deleteIfEmpty(directory, counters)) {
+					counters.directoriesDeleted.increment();
+				}
+			}
+		}
+		Result result = new Result(counters.filesDeleted.sum(), counters.directoriesDeleted.sum(), counters.bytesDeleted.sum(),
+				counters.failures.sum(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		lastResult = result;
+		return result;
+	}
+
+	/**
+	 * Each worker takes subdirectories until none are left, so no more than
+	 * threadCount are swept at once whatever the executor
+	 */
+	private void sweepSubtrees(final Queue<Path> subtrees, final long cutoff, final Counters counters, final Consumer<Path> deletedFiles) throws IOException {
+		List<Future<?>> workers = new ArrayList<>(threadCount);
+		try {
+			for (int worker = 0; worker < Math.min(threadCount, subtrees.size()); worker++) {
+				workers.add(executor.submit(() -> {
+					Path subtree;
+					while ((subtree = subtrees.poll()) != null) {
+						Files.walkFileTree(subtree, new SweepVisitor(cutoff, counters, deletedFiles));
+					}
+					return null;
+				}));
+			}
+			for (Future<?> worker : workers) {
+				FileHelper.getResult(worker);
+			}
+		} finally {
+			// Only left running when the sweep was interrupted
+			for (Future<?> worker : workers) {
+				worker.cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * Sweeps the directory every period until closed. A sweep that fails
+	 * does not stop the ones after it.
+	 *
+	 * @param period
+	 * @param unit
+	 * @return
+	 */
+	public synchronized ScheduledFuture<?> start(long period, TimeUnit unit) {
+		if (scheduler != null) {
+			throw new IllegalStateException("Janitor for " + directory + " is already running");
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "FileJanitor " + directory);
+			thread.setDaemon(true);
+			return thread;
+		});
+		return scheduler.scheduleWithFixedDelay(() -> {
+			try {
+				sweep();
+			} catch (IOException | RuntimeException ex) {
+				LOGGER.warn("Could not sweep " + directory, ex);
+			}
+		}, 0, period, unit);
+	}
+
+	/**
+	 * @return what the last sweep deleted, null if none has finished yet
+	 */
+	public Result getLastResult() {
+		return lastResult;
+	}
+
+	/**
+	 * Stops sweeping on a schedule
+	 */
+	@Override
+	public synchronized void close() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+	}
+
+	private static class Counters {
+
+		private final LongAdder filesDeleted = new LongAdder();
+		private final LongAdder directoriesDeleted = new LongAdder();
+		private final LongAdder bytesDeleted = new LongAdder();
+		private final LongAdder failures = new LongAdder();
+	}
+
+	private static boolean deleteIfEmpty(Path dir, Counters counters) {
+		try {
+			Files.delete(dir);
+			return true;
+		} catch (DirectoryNotEmptyException | NoSuchFileException ex) {
+			return false;
+		} catch (IOException ex) {
+			counters.failures.increment();
+			LOGGER.debug("Could not delete directory " + dir, ex);
+			return false;
+		}
+	}
+
+	/**
+	 * Entries seen in a directory and entries deleted from it
+	 */
+	private static class Frame {
+
+		private final boolean old;
+		private long entries = 0;
+		private long deleted = 0;
+
+		Frame(boolean old) {
+			this.old = old;
+		}
+	}
+
+	/**
+	 * Deletes old files of a subtree, then directories left empty, post-order
+	 */
+	private static class SweepVisitor extends SimpleFileVisitor<Path> {
+
+		private final long cutoff;
+		private final Counters counters;
+		private final Consumer<Path> deletedFiles;
+		private final Deque<Frame> frames = new ArrayDeque<>();
+
+		SweepVisitor(long cutoff, Counters counters, Consumer<Path> deletedFiles) {
+			this.cutoff = cutoff;
+			this.counters = counters;
+			this.deletedFiles = deletedFiles;
+		}
+
+		@Override
+		public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+			Frame parent = frames.peek();
+			if (parent != null) {
+				parent.entries++;
+			}
+			frames.push(new Frame(attrs.lastModifiedTime().toMillis() < cutoff));
+			return FileVisitResult.CONTINUE;
+		}
+
+		@Override
+		public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+			Frame parent = frames.peek();
+			if (parent != null) {
+				parent.entries++;
+			}
+			if (attrs.lastModifiedTime().toMillis() < cutoff) {
+				try {
+					Files.delete(file);
+					counters.filesDeleted.increment();
+					counters.bytesDeleted.add(attrs.size());
+					if (parent != null) {
+						parent.deleted++;
+					}
+					if (deletedFiles != null) {
+						deletedFiles.accept(file);
+					}
+				} catch (NoSuchFileException ex) {
+					// Removed by someone else in the meantime
+					if (parent != null) {
+						parent.deleted++;
+					}
+				} catch (IOException ex) {
+					counters.failures.increment();
+					LOGGER.debug("Could not delete file " + file, ex);
+				}
+			}
+			return FileVisitResult.CONTINUE;
+		}
+
+		@Override
+		public FileVisitResult visitFileFailed(Path file, IOException exc) {
+			Frame parent = frames.peek();
+			if (parent != null) {
+				parent.entries++;
+			}
+			if (!(exc instanceof NoSuchFileException)) {
+				counters.failures.increment();
+				LOGGER.debug("Could not read " + file, exc);
+			} else if (parent != null) {
+				parent.deleted++;
+			}
+			return FileVisitResult.CONTINUE;
+		}
+
+		@Override
+		public FileVisitResult postVisitDirectory(Path dir, IOException exc) {
+			Frame frame = frames.pop();
+			if (exc != null) {
+				counters.failures.increment();
+				LOGGER.debug("Could not list directory " + dir, exc);
+				return FileVisitResult.CONTINUE;
+			}
+			if (frame.entries == frame.deleted && (frame.deleted > 0 || frame.old) && deleteIfEmpty(dir, counters)) {
+				counters.directoriesDeleted.increment();
+				Frame parent = frames.peek();
+				if (parent != null) {
+					parent.deleted++;
+				}
+			}
+			return FileVisitResult.CONTINUE;
+		}
+	}
+
+	/**
+	 * Sweeps the files directly in the swept directory and collects its
+	 * subdirectories for the workers, or sweeps them in turn without workers
+	 */
+	private static class RootVisitor extends SimpleFileVisitor<Path> {
+
+		private final long cutoff;
+		private final Counters counters;
+		private final Consumer<Path> deletedFiles;
+		private final boolean parallel;
+		private final SweepVisitor fileVisitor;
+		private final Queue<Path> subtrees = new ConcurrentLinkedQueue<>();
+
+		RootVisitor(long cutoff, Counters counters, Consumer<Path> deletedFiles, boolean parallel) {
+			this.cutoff = cutoff;
+			this.counters = counters;
+			this.deletedFiles = deletedFiles;
+			this.parallel = parallel;
+			this.fileVisitor = new SweepVisitor(cutoff, counters, deletedFiles);
+		}
+
+		@Override
+		public FileVisitResult visitFile(final Path file, BasicFileAttributes attrs) throws IOException {
+			// At the maximum depth, subdirectories are visited as files
+			if (!attrs.isDirectory()) {
+				return fileVisitor.visitFile(file, attrs);
+			}
+			if (parallel) {
+				subtrees.add(file);
+			} else {
+				Files.walkFileTree(file, new SweepVisitor(cutoff, counters, deletedFiles));
+			}
+			return FileVisitResult.CONTINUE;
+		}
+
+		@Override
+		public FileVisitResult visitFileFailed(Path file, IOException exc) {
+			return fileVisitor.visitFileFailed(file, exc);
+		}
+
+		@Override
+		public FileVisitResult postVisitDirectory(Path dir, IOException exc) {
+			if (exc != null) {
+				counters.failures.increment();
+				LOGGER.debug("Could not list directory " + dir, exc);
+			}
+			return FileVisitResult.CONTINUE;
+		}
+	}
+}
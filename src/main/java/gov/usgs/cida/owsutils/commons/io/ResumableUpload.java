@@ -0,0 +1,356 @@
+package gov.usgs.cida.owsutils.commons.io;
+
+import gov.usgs.cida.owsutils.commons.io.exception.ChecksumMismatchException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A file uploaded in chunks that may arrive in any order, more than once, or
+ * not at all until a later attempt. Chunks are written in place at their
+ * offset into a partial file next to the destination, and the byte ranges
+ * received so far are kept in a manifest next to it, so an upload can be
+ * resumed after a dropped connection or a restart by sending only the
+ * missing ranges.
+ *
+ * Once every byte has been received, {@link #complete(java.lang.String, java.lang.String)}
+ * checks the file against the checksum the client sent and moves it to the
+ * destination.
+ *
+ * @see gov.usgs.cida.owsutils.commons.communication.RequestResponse#saveChunkFromRequest(javax.servlet.http.HttpServletRequest, gov.usgs.cida.owsutils.commons.io.ResumableUpload, java.lang.String)
+ */
+public class ResumableUpload implements AutoCloseable {
+
+	private static final org.slf4j.Logger LOGGER = LoggerFactory.getLogger(ResumableUpload.class);
+	public static final String PART_EXTENSION = "part";
+	public static final String MANIFEST_EXTENSION = "ranges";
+	private static final int MAGIC = 0x52414e47; // "RANG"
+	private static final int VERSION = 1;
+	private static final int BUFFER_SIZE = 8192;
+
+	private final File destinationFile;
+	private final File partFile;
+	private final File manifestFile;
+	private final long length;
+	// Received ranges by start offset to end offset, exclusive, never touching
+	private final TreeMap<Long, Long> ranges = new TreeMap<>();
+	private final FileChannel channel;
+
+	/**
+	 * A range of bytes, end exclusive
+	 */
+	public static class Range {
+
+		private final long start;
+		private final long end;
+
+		Range(long start, long end) {
+			this.start = start;
+			this.end = end;
+		}
+
+		public long getStart() {
+			return start;
+		}
+
+		public long getEnd() {
+			return end;
+		}
+
+		public long getLength() {
+			return end - start;
+		}
+
+		@Override
+		public String toString() {
+			return start + "-" + (end - 1);
+		}
+	}
+
+	private ResumableUpload(File destinationFile, long length) throws IOException {
+		this.destinationFile = destinationFile;
+		this.partFile = new File(destinationFile.getPath() + "." + PART_EXTENSION);
+		this.manifestFile = new File(destinationFile.getPath() + "." + MANIFEST_EXTENSION);
+		this.length = length;
+		File parent = destinationFile.getAbsoluteFile().getParentFile();
+		if (parent != null) {
+			FileUtils.forceMkdir(parent);
+		}
+		this.channel = FileChannel.open(partFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+	}
+
+	/**
+	 * Starts an upload to destinationFile, or resumes the one a previous
+	 * attempt left there. An upload left with a different length is started
+	 * over.
+	 *
+	 * @param destinationFile where the file ends up once complete
+	 * @param length size of the complete file in bytes
+	 * @return
+	 * @throws IOException
+	 */
+	public static ResumableUpload open(File destinationFile, long length) throws IOException {
+		if (length < 0) {
+			throw new IllegalArgumentException("Length can not be negative");
+		}
+		ResumableUpload upload = new ResumableUpload(destinationFile, length);
+		try {
+			upload.readManifest();
+		} catch (IOException | RuntimeException ex) {
+			upload.close();
+			throw ex;
+		}
+		return upload;
+	}
+
+	private void readManifest() throws IOException {
+		if (!manifestFile.exists()) {
+			return;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(manifestFile)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readLong() != length) {
+				LOGGER.info("Upload manifest {} does not match, starting over", manifestFile);
+				channel.truncate(0);
+				return;
+			}
+			int count = in.readInt();
+			for (int rIdx = 0; rIdx < count; rIdx++) {
+				long start = in.readLong();
+				long end = in.readLong();
+				if (start < 0 || end > length || start >= end) {
+					throw new IOException("Upload manifest " + manifestFile + " is corrupt");
+				}
+				addRange(start, end);
+			}
+		}
+		// Only bytes the manifest accounts for were forced to disk
+		if (channel.size() < getEnd()) {
+			throw new IOException("Partial upload " + partFile + " is shorter than its manifest");
+		}
+	}
+
+	private long getEnd() {
+		return ranges.isEmpty() ? 0 : ranges.lastEntry().getValue();
+	}
+
+	/**
+	 * Writes the manifest to a temporary file first, so a crash leaves either
+	 * the previous manifest or this one
+	 */
+	private void writeManifest() throws IOException {
+		File tempFile = new File(manifestFile.getPath() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(length);
+			out.writeInt(ranges.size());
+			for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+				out.writeLong(range.getKey());
+				out.writeLong(range.getValue());
+			}
+		}
+		try {
+			Files.move(tempFile.toPath(), manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException ex) {
+			Files.move(tempFile.toPath(), manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Merges a range into the received ranges, joining ranges it overlaps or
+	 * touches
+	 */
+	private void addRange(long start, long end) {
+		Map.Entry<Long, Long> before = ranges.floorEntry(start);
+		if (before != null && before.getValue() >= start) {
+			start = before.getKey();
+			end = Math.max(end, before.getValue());
+		}
+		Map.Entry<Long, Long> after = ranges.ceilingEntry(start);
+		while (after != null && after.getKey() <= end) {
+			end = Math.max(end, after.getValue());
+			ranges.remove(after.getKey());
+			after = ranges.ceilingEntry(start);
+		}
+		ranges.put(start, end);
+	}
+
+	/**
+	 * Writes a chunk at its offset in the file. Whatever part of the chunk
+	 * was read before the stream ended or failed is kept and recorded, so
+	 * a retry only has to send the rest.
+	 *
+	 * Chunks at distinct offsets may be written from separate threads.
+	 *
+	 * @param offset position of the first byte of the chunk in the file
+	 * @param data
+	 * @return amount of bytes written
+	 * @throws IOException
+	 */
+	public long writeChunk(long offset, InputStream data) throws IOException {
+		if (offset < 0 || offset > length) {
+			throw new IllegalArgumentException("Offset " + offset + " is outside of the " + length + " byte upload");
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		long position = offset;
+		try {
+			int read;
+			while ((read = data.read(buffer.array())) != -1) {
+				if (position + read > length) {
+					throw new IOException("Chunk at " + offset + " runs past the end of the " + length + " byte upload");
+				}
+				buffer.clear();
+				buffer.limit(read);
+				while (buffer.hasRemaining()) {
+					position += channel.write(buffer, position);
+				}
+			}
+		} finally {
+			if (position > offset) {
+				// The data goes to disk before the manifest claims it
+				channel.force(false);
+				synchronized (this) {
+					addRange(offset, position);
+					writeManifest();
+				}
+			}
+		}
+		return position - offset;
+	}
+
+	/**
+	 * @return the ranges still missing, in order
+	 */
+	public synchronized List<Range> getMissingRanges() {
+		List<Range> missing = new ArrayList<>();
+		long position = 0;
+		for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+			if (range.getKey() > position) {
+				missing.add(new Range(position, range.getKey()));
+			}
+			position = range.getValue();
+		}
+		if (position < length) {
+			missing.add(new Range(position, length));
+		}
+		return Collections.unmodifiableList(missing);
+	}
+
+	/**
+	 * @return amount of distinct bytes received so far
+	 */
+	public synchronized long getReceivedLength() {
+		long received = 0;
+		for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+			received += range.getValue() - range.getKey();
+		}
+		return received;
+	}
+
+	public synchronized boolean isComplete() {
+		return getReceivedLength() == length;
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	public File getDestinationFile() {
+		return destinationFile;
+	}
+
+	/**
+	 * Checks the complete file against a checksum and moves it to the
+	 * destination file. If the checksum does not match, the received ranges
+	 * are forgotten so the file is sent again.
+	 *
+	 * @param algorithm a MessageDigest algorithm, such as MD5 or SHA-256
+	 * @param expectedChecksum hex encoded, in either case
+	 * @return the destination file
+	 * @throws IOException
+	 * @throws ChecksumMismatchException if the file does not match the
+	 * checksum
+	 * @throws IllegalStateException if bytes are still missing
+	 */
+	public synchronized File complete(String algorithm, String expectedChecksum) throws IOException, ChecksumMismatchException {
+		if (!isComplete()) {
+			throw new IllegalStateException("Upload is missing " + getMissingRanges());
+		}
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance(algorithm);
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IllegalArgumentException(ex);
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		long position = 0;
+		while (position < length) {
+			buffer.clear();
+			int read = channel.read(buffer, position);
+			if (read == -1) {
+				throw new IOException("Partial upload " + partFile + " is shorter than its manifest");
+			}
+			digest.update(buffer.array(), 0, read);
+			position += read;
+		}
+		String checksum = Hex.encodeHexString(digest.digest());
+		if (!checksum.equalsIgnoreCase(expectedChecksum)) {
+			ranges.clear();
+			writeManifest();
+			throw new ChecksumMismatchException(algorithm + " checksum of " + destinationFile.getName() + " is " + checksum + ", expected " + expectedChecksum);
+		}
+
+		close();
+		try {
+			Files.move(partFile.toPath(), destinationFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException ex) {
+			Files.move(partFile.toPath(), destinationFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		FileUtils.deleteQuietly(manifestFile);
+		return destinationFile;
+	}
+
+	/**
+	 * Gives up on the upload, removing the partial file and its manifest
+	 */
+	public synchronized void abort() {
+		close();
+		FileUtils.deleteQuietly(partFile);
+		FileUtils.deleteQuietly(manifestFile);
+	}
+
+	/**
+	 * Releases the partial file. The upload can be resumed later by opening
+	 * it again.
+	 */
+	@Override
+	public void close() {
+		try {
+			channel.close();
+		} catch (IOException ex) {
+			LOGGER.warn("Could not close partial upload " + partFile, ex);
+		}
+	}
+}
@@ -0,0 +1,198 @@
+package gov.usgs.cida.owsutils.commons.io;
+
+import gov.usgs.cida.owsutils.commons.io.exception.ZipLimitExceededException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.zip.ZipEntry;
+
+/**
+ * Bounds on what reading a zip archive may cost: the amount of bytes inflated
+ * from the whole archive and from a single entry, the amount of entries and
+ * the ratio of inflated to compressed bytes of an entry. Limits are enforced
+ * while entries are inflated, so inflated bytes past a limit are never handed
+ * to the caller.
+ *
+ * The default limits only cap sizes and the entry count. Shapefile .dbf
+ * entries are often padded with blanks and compress well over 200 to 1, so a
+ * compression ratio limit is left to callers who know their archives.
+ *
+ * @see FileHelper#setZipLimits(gov.usgs.cida.owsutils.commons.io.ZipLimits)
+ */
+public class ZipLimits {
+
+	public static final long DEFAULT_MAXIMUM_TOTAL_BYTES = 8L * 1024 * 1024 * 1024;
+	public static final long DEFAULT_MAXIMUM_ENTRY_BYTES = 4L * 1024 * 1024 * 1024;
+	public static final int DEFAULT_MAXIMUM_ENTRY_COUNT = 10000;
+	public static final double DEFAULT_MAXIMUM_COMPRESSION_RATIO = Double.POSITIVE_INFINITY;
+	public static final ZipLimits DEFAULT = new ZipLimits(DEFAULT_MAXIMUM_TOTAL_BYTES, DEFAULT_MAXIMUM_ENTRY_BYTES, DEFAULT_MAXIMUM_ENTRY_COUNT, DEFAULT_MAXIMUM_COMPRESSION_RATIO);
+	public static final ZipLimits UNLIMITED = new ZipLimits(Long.MAX_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE, Double.POSITIVE_INFINITY);
+	// Small entries may compress far better than any bomb without costing much
+	private static final long RATIO_GRACE_BYTES = 1024 * 1024;
+
+	private final long maximumTotalBytes;
+	private final long maximumEntryBytes;
+	private final int maximumEntryCount;
+	private final double maximumCompressionRatio;
+
+	/**
+	 *
+	 * @param maximumTotalBytes inflated bytes allowed from all entries
+	 * @param maximumEntryBytes inflated bytes allowed from a single entry
+	 * @param maximumEntryCount entries allowed in an archive
+	 * @param maximumCompressionRatio inflated bytes allowed per compressed
+	 * byte of an entry. Only enforced on entries over a megabyte.
+	 */
+	public ZipLimits(long maximumTotalBytes, long maximumEntryBytes, int maximumEntryCount, double maximumCompressionRatio) {
+		if (maximumTotalBytes < 0 || maximumEntryBytes < 0 || maximumEntryCount < 0) {
+			throw new IllegalArgumentException("Zip limits can not be negative");
+		}
+		if (!(maximumCompressionRatio >= 1)) {
+			throw new IllegalArgumentException("Maximum compression ratio must be at least 1");
+		}
+		this.maximumTotalBytes = maximumTotalBytes;
+		this.maximumEntryBytes = maximumEntryBytes;
+		this.maximumEntryCount = maximumEntryCount;
+		this.maximumCompressionRatio = maximumCompressionRatio;
+	}
+
+	public long getMaximumTotalBytes() {
+		return maximumTotalBytes;
+	}
+
+	public long getMaximumEntryBytes() {
+		return maximumEntryBytes;
+	}
+
+	public int getMaximumEntryCount() {
+		return maximumEntryCount;
+	}
+
+	public double getMaximumCompressionRatio() {
+		return maximumCompressionRatio;
+	}
+
+	/**
+	 * @return a guard keeping count for a single archive
+	 */
+	Guard newGuard() {
+		return new Guard();
+	}
+
+	/**
+	 * Keeps count of what has been read from one archive. A guard may be
+	 * shared by threads inflating entries of the same archive concurrently.
+	 */
+	class Guard {
+
+		private final AtomicLong totalBytes = new AtomicLong();
+		private final AtomicInteger entryCount = new AtomicInteger();
+		private final AtomicLong declaredTotalBytes = new AtomicLong();
+
+		/**
+		 * Counts an entry of the archive
+		 *
+		 * @param entry
+		 * @throws ZipLimitExceededException
+		 */
+		void addEntry(ZipEntry entry) throws ZipLimitExceededException {
+			if (entryCount.incrementAndGet() > maximumEntryCount) {
+				throw new ZipLimitExceededException("Zip archive holds more than " + maximumEntryCount + " entries");
+			}
+			checkDeclaredSize(entry);
+		}
+
+		/**
+		 * Checks the sizes an entry declares in the archive, for the paths
+		 * that never inflate the entry. Declared sizes may lie, which is why
+		 * inflated entries are counted as they are read as well.
+		 *
+		 * @param entry
+		 * @throws ZipLimitExceededException
+		 */
+		private void checkDeclaredSize(ZipEntry entry) throws ZipLimitExceededException {
+			long size = entry.getSize();
+			if (size < 0) {
+				return;
+			}
+			if (size > maximumEntryBytes) {
+				throw new ZipLimitExceededException("Zip entry " + entry.getName() + " inflates to more than " + maximumEntryBytes + " bytes");
+			}
+			if (declaredTotalBytes.addAndGet(size) > maximumTotalBytes) {
+				throw new ZipLimitExceededException("Zip archive inflates to more than " + maximumTotalBytes + " bytes");
+			}
+			long compressedSize = entry.getCompressedSize();
+			if (size > RATIO_GRACE_BYTES && compressedSize >= 0 && size > maximumCompressionRatio * compressedSize) {
+				throw new ZipLimitExceededException("Zip entry " + entry.getName() + " has a compression ratio over " + maximumCompressionRatio);
+			}
+		}
+
+		/**
+		 * @param entry
+		 * @param inflated stream of the inflated entry
+		 * @param compressedBytes amount of compressed bytes of the entry read
+		 * so far, or a negative value if unknown
+		 * @return a stream failing with a ZipLimitExceededException rather
+		 * than returning bytes past a limit
+		 */
+		InputStream guard(ZipEntry entry, InputStream inflated, LongSupplier compressedBytes) {
+			return new GuardedInputStream(entry.getName(), inflated, compressedBytes);
+		}
+
+		private class GuardedInputStream extends FilterInputStream {
+
+			private final String entryName;
+			private final LongSupplier compressedBytes;
+			private long entryBytes = 0;
+
+			GuardedInputStream(String entryName, InputStream in, LongSupplier compressedBytes) {
+				super(in);
+				this.entryName = entryName;
+				this.compressedBytes = compressedBytes;
+			}
+
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int read = in.read(b, off, len);
+				if (read > 0) {
+					count(read);
+				}
+				return read;
+			}
+
+			@Override
+			public long skip(long n) throws IOException {
+				long skipped = in.skip(n);
+				if (skipped > 0) {
+					count(skipped);
+				}
+				return skipped;
+			}
+
+			private void count(long read) throws ZipLimitExceededException {
+				entryBytes += read;
+				if (entryBytes > maximumEntryBytes) {
+					throw new ZipLimitExceededException("Zip entry " + entryName + " inflates to more than " + maximumEntryBytes + " bytes");
+				}
+				if (totalBytes.addAndGet(read) > maximumTotalBytes) {
+					throw new ZipLimitExceededException("Zip archive inflates to more than " + maximumTotalBytes + " bytes");
+				}
+				if (entryBytes > RATIO_GRACE_BYTES) {
+					long compressed = compressedBytes.getAsLong();
+					if (compressed >= 0 && entryBytes > maximumCompressionRatio * compressed) {
+						throw new ZipLimitExceededException("Zip entry " + entryName + " has a compression ratio over " + maximumCompressionRatio);
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,20 @@
+package gov.usgs.cida.owsutils.commons.io.exception;
+
+import java.io.IOException;
+
+/**
+ * Exception gets thrown when a received file does not match the checksum sent
+ * along with it
+ *
+ */
+public class ChecksumMismatchException extends IOException {
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 1L;
+
+	public ChecksumMismatchException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,21 @@
+package gov.usgs.cida.owsutils.commons.io.exception;
+
+import java.io.IOException;
+
+/**
+ * Exception gets thrown when reading a zip archive would go past the limits on
+ * inflated size, entry count or compression ratio
+ *
+ * @see gov.usgs.cida.owsutils.commons.io.ZipLimits
+ */
+public class ZipLimitExceededException extends IOException {
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 1L;
+
+	public ZipLimitExceededException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,274 @@
+package gov.usgs.cida.owsutils.commons.shapefile.utils;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.geotools.data.DataStore;
+import org.geotools.data.DataStoreFinder;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded, thread-safe pool of DataStores keyed by URL. Stores are reference
+ * counted: a store handed out through a {@link Lease} is never disposed before
+ * every lease on it has been closed. Stores nobody holds a lease on are
+ * disposed once they have been idle too long, or when the pool grows past its
+ * maximum size, least recently used first.
+ *
+ * @see FeatureCollectionFromShp#getFeatureCollectionFromShp(java.net.URL)
+ */
+public class DataStoreCache {
+
+	private static final org.slf4j.Logger LOGGER = LoggerFactory.getLogger(DataStoreCache.class);
+	public static final int DEFAULT_MAXIMUM_SIZE = 16;
+	public static final long DEFAULT_MAXIMUM_IDLE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+	/**
+	 * Opens the DataStore for a URL on a cache miss
+	 */
+	public static interface Factory {
+
+		DataStore create(URL url) throws IOException;
+	}
+
+	/**
+	 * Opens DataStores through the DataStoreFinder SPI lookup
+	 */
+	public static final Factory FINDER_FACTORY = new Factory() {
+		@Override
+		public DataStore create(URL url) throws IOException {
+			Map<String, URL> connectParameters = new HashMap<>();
+			connectParameters.put("url", url);
+			DataStore dataStore = DataStoreFinder.getDataStore(connectParameters);
+			if (dataStore == null) {
+				throw new IOException("No DataStore is available for " + url);
+			}
+			return dataStore;
+		}
+	};
+
+	private final int maximumSize;
+	private final long maximumIdleNanos;
+	private final Factory factory;
+	// In access order, least recently used first
+	private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	public DataStoreCache() {
+		this(DEFAULT_MAXIMUM_SIZE, DEFAULT_MAXIMUM_IDLE_MILLIS, FINDER_FACTORY);
+	}
+
+	/**
+	 *
+	 * @param maximumSize Amount of stores held before idle stores are evicted
+	 * @param maximumIdleMillis How long a store nobody holds a lease on is kept
+	 * @param factory Opens the store for a URL on a cache miss
+	 */
+	public DataStoreCache(final int maximumSize, long maximumIdleMillis, Factory factory) {
+		if (maximumSize < 1) {
+			throw new IllegalArgumentException("Maximum size must be at least 1");
+		}
+		if (maximumIdleMillis < 0) {
+			throw new IllegalArgumentException("Maximum idle time can not be negative");
+		}
+		if (factory == null) {
+			throw new IllegalArgumentException("A DataStore factory is required");
+		}
+		this.maximumSize = maximumSize;
+		this.maximumIdleNanos = TimeUnit.MILLISECONDS.toNanos(maximumIdleMillis);
+		this.factory = factory;
+	}
+
+	private static class Entry {
+
+		private final String key;
+		private final DataStore dataStore;
+		private int leaseCount = 0;
+		private long idleSince;
+		private boolean evicted = false;
+
+		Entry(String key, DataStore dataStore) {
+			this.key = key;
+			this.dataStore = dataStore;
+		}
+	}
+
+	/**
+	 * A hold on a pooled DataStore. The store stays open at least until the
+	 * lease is closed.
+	 */
+	public class Lease implements AutoCloseable {
+
+		private final Entry entry;
+		private final AtomicBoolean closed = new AtomicBoolean(false);
+
+		private Lease(Entry entry) {
+			this.entry = entry;
+		}
+
+		public DataStore getDataStore() {
+			if (closed.get()) {
+				throw new IllegalStateException("The lease on " + entry.key + " has been closed");
+			}
+			return entry.dataStore;
+		}
+
+		/**
+		 * Gives the store back to the pool. Closing a lease more than once has
+		 * no further effect.
+		 */
+		@Override
+		public void close() {
+			if (closed.compareAndSet(false, true)) {
+				release(entry);
+			}
+		}
+	}
+
+	/**
+	 * Leases the store for a URL, opening it on a cache miss. The store is
+	 * opened outside of the cache lock so a slow open does not block leases
+	 * on other URLs.
+	 *
+	 * @param url
+	 * @return a lease the caller must close once done with the store
+	 * @throws IOException
+	 */
+	public Lease acquire(URL url) throws IOException {
+		String key = url.toExternalForm();
+		List<DataStore> disposable = new ArrayList<>();
+		try {
+			synchronized (entries) {
+				evict(disposable);
+				Entry entry = entries.get(key);
+				if (entry != null) {
+					hitCount.incrementAndGet();
+					entry.leaseCount++;
+					return new Lease(entry);
+				}
+			}
+
+			missCount.incrementAndGet();
+			DataStore dataStore = factory.create(url);
+			synchronized (entries) {
+				Entry entry = entries.get(key);
+				if (entry != null) {
+					// Opened concurrently by another caller, keep theirs
+					disposable.add(dataStore);
+				} else {
+					entry = new Entry(key, dataStore);
+					entries.put(key, entry);
+				}
+				entry.leaseCount++;
+				evict(disposable);
+				return new Lease(entry);
+			}
+		} finally {
+			dispose(disposable);
+		}
+	}
+
+	private void release(Entry entry) {
+		List<DataStore> disposable = new ArrayList<>();
+		synchronized (entries) {
+			entry.leaseCount--;
+			entry.idleSince = System.nanoTime();
+			if (entry.evicted) {
+				if (entry.leaseCount == 0) {
+					disposable.add(entry.dataStore);
+				}
+			} else {
+				// Releasing counts as a use for the eviction order
+				entries.get(entry.key);
+			}
+			evict(disposable);
+		}
+		dispose(disposable);
+	}
+
+	/**
+	 * Removes idle stores past their idle time, then least recently used idle
+	 * stores while the pool is too large. Stores under lease are never
+	 * evicted here.
+	 *
+	 * @param disposable collects the stores to dispose outside of the lock
+	 */
+	private void evict(List<DataStore> disposable) {
+		long now = System.nanoTime();
+		int size = entries.size();
+		Iterator<Entry> entryIterator = entries.values().iterator();
+		while (entryIterator.hasNext()) {
+			Entry entry = entryIterator.next();
+			if (entry.leaseCount == 0 && (size > maximumSize || now - entry.idleSince > maximumIdleNanos)) {
+				entryIterator.remove();
+				entry.evicted = true;
+				disposable.add(entry.dataStore);
+				evictionCount.incrementAndGet();
+				size--;
+			}
+		}
+	}
+
+	private static void dispose(List<DataStore> disposable) {
+		for (DataStore dataStore : disposable) {
+			try {
+				dataStore.dispose();
+			} catch (RuntimeException ex) {
+				LOGGER.warn("Could not dispose DataStore", ex);
+			}
+		}
+	}
+
+	/**
+	 * Disposes every store nobody holds a lease on. Stores under lease are
+	 * removed from the pool and disposed once their last lease is closed.
+	 */
+	public void clear() {
+		List<DataStore> disposable = new ArrayList<>();
+		synchronized (entries) {
+			for (Entry entry : entries.values()) {
+				entry.evicted = true;
+				if (entry.leaseCount == 0) {
+					disposable.add(entry.dataStore);
+				}
+			}
+			entries.clear();
+		}
+		dispose(disposable);
+	}
+
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	public int getMaximumSize() {
+		return maximumSize;
+	}
+
+	public long getMaximumIdleMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(maximumIdleNanos);
+	}
+}
@@ -0,0 +1,170 @@
+package gov.usgs.cida.owsutils.commons.shapefile.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.opengis.referencing.FactoryException;
+
+/**
+ * Bounded, thread-safe cache of WKT to EPSG identifier lookups. Keys are the
+ * normalized WKT along with the base CRS failover flag used for the lookup.
+ *
+ * @see ProjectionUtils#getDeclaredEPSGFromWKT(java.lang.String, boolean)
+ */
+public class EPSGLookupCache {
+
+    public static final int DEFAULT_MAXIMUM_SIZE = 128;
+
+    public static enum EvictionPolicy {
+
+        LEAST_RECENTLY_USED, FIRST_IN_FIRST_OUT;
+    }
+
+    /**
+     * Performs the actual lookup on a cache miss
+     */
+    public static interface Lookup {
+
+        String lookup(String wkt, boolean useBaseCRSFailover) throws FactoryException;
+    }
+
+    // Marks a cached lookup that found no identifier
+    private static final String NO_IDENTIFIER = new String();
+
+    private final int maximumSize;
+    private final EvictionPolicy evictionPolicy;
+    private final boolean cacheNegativeResults;
+    private final Map<String, String> cache;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    public EPSGLookupCache() {
+        this(DEFAULT_MAXIMUM_SIZE, EvictionPolicy.LEAST_RECENTLY_USED, false);
+    }
+
+    /**
+     *
+     * @param maximumSize Maximum amount of lookups held before evicting
+     * @param evictionPolicy Which lookup gets evicted once the cache is full
+     * @param cacheNegativeResults Also cache lookups that found no identifier
+     */
+    public EPSGLookupCache(final int maximumSize, EvictionPolicy evictionPolicy, boolean cacheNegativeResults) {
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException("Maximum size must be at least 1");
+        }
+        if (evictionPolicy == null) {
+            throw new IllegalArgumentException("An eviction policy is required");
+        }
+        this.maximumSize = maximumSize;
+        this.evictionPolicy = evictionPolicy;
+        this.cacheNegativeResults = cacheNegativeResults;
+        this.cache = new LinkedHashMap<String, String>(16, 0.75f, evictionPolicy == EvictionPolicy.LEAST_RECENTLY_USED) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                if (size() > EPSGLookupCache.this.maximumSize) {
+                    evictionCount.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached identifier for the WKT, running the lookup and
+     * caching its result on a miss. The lookup runs outside of the cache lock
+     * so a slow lookup does not block hits on other projections.
+     *
+     * @param wkt
+     * @param useBaseCRSFailover
+     * @param lookup
+     * @return the identifier, or null if none was found
+     * @throws FactoryException
+     */
+    public String get(final String wkt, boolean useBaseCRSFailover, Lookup lookup) throws FactoryException {
+        String key = createKey(wkt, useBaseCRSFailover);
+        String result;
+        synchronized (cache) {
+            result = cache.get(key);
+        }
+
+        if (result != null) {
+            hitCount.incrementAndGet();
+            return result == NO_IDENTIFIER ? null : result;
+        }
+
+        missCount.incrementAndGet();
+        result = lookup.lookup(wkt, useBaseCRSFailover);
+        if (result != null || cacheNegativeResults) {
+            synchronized (cache) {
+                cache.put(key, result == null ? NO_IDENTIFIER : result);
+            }
+        }
+        return result;
+    }
+
+    public void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    public EvictionPolicy getEvictionPolicy() {
+        return evictionPolicy;
+    }
+
+    public boolean isCachingNegativeResults() {
+        return cacheNegativeResults;
+    }
+
+    static String createKey(final String wkt, boolean useBaseCRSFailover) {
+        return (useBaseCRSFailover ? "1:" : "0:") + normalizeWKT(wkt);
+    }
+
+    /**
+     * Removes whitespace that sits outside of quoted names. Such whitespace
+     * has no meaning in WKT but differs between PRJ writers.
+     *
+     * @param wkt
+     * @return
+     */
+    static String normalizeWKT(final String wkt) {
+        StringBuilder normalized = new StringBuilder(wkt.length());
+        boolean quoted = false;
+        for (int cIdx = 0; cIdx < wkt.length(); cIdx++) {
+            char c = wkt.charAt(cIdx);
+            if (c == '"') {
+                quoted = !quoted;
+            }
+            if (quoted || !Character.isWhitespace(c)) {
+                normalized.append(c);
+            }
+        }
+        return normalized.toString();
+    }
+}
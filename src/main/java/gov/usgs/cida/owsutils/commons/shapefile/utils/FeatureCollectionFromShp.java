@@ -47,15 +47,14 @@ package gov.usgs.cida.owsutils.commons.shapefile.utils;
 
 import java.io.IOException;
 import java.net.URL;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.function.Consumer;
 import org.apache.commons.lang.StringUtils;
 import org.geotools.data.DataStore;
-import org.geotools.data.DataStoreFinder;
-import org.geotools.data.FeatureSource;
+import org.geotools.data.FeatureReader;
+import org.geotools.data.Query;
+import org.geotools.data.Transaction;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.store.EmptyFeatureCollection;
-import org.geotools.feature.FeatureCollection;
 import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
@@ -66,38 +65,127 @@ import org.opengis.feature.simple.SimpleFeatureType;
  */
 public class FeatureCollectionFromShp {
 
-	public static FeatureCollection<SimpleFeatureType, SimpleFeature> getFeatureCollectionFromShp(URL shp) throws IOException {
+	// Off unless enabled, as a pooled store stays open for as long as any
+	// collection leased from it is left unclosed
+	private static volatile DataStoreCache dataStoreCache = null;
+
+	/**
+	 * @return the pool DataStores are leased from, null if pooling is off
+	 */
+	public static DataStoreCache getDataStoreCache() {
+		return dataStoreCache;
+	}
+
+	/**
+	 * Replaces the pool DataStores are leased from. Only enable pooling if
+	 * every collection from
+	 * {@link #getFeatureCollectionFromShp(java.net.URL)} is closed, since
+	 * stores under lease are never evicted.
+	 *
+	 * @param cache Null value allowed. Will open a DataStore per collection
+	 */
+	public static void setDataStoreCache(DataStoreCache cache) {
+		dataStoreCache = cache;
+	}
+
+	/**
+	 * Features of the returned collection are read lazily from a DataStore,
+	 * which stays open until the collection is closed. Callers must close the
+	 * collection once they are done reading it.
+	 *
+	 * @param shp
+	 * @return
+	 * @throws IOException
+	 */
+	public static StoreBackedFeatureCollection getFeatureCollectionFromShp(URL shp) throws IOException {
 		if (null == shp) {
 			throw new NullPointerException("The shapefile url cannot be null");
 		}
 
-		FeatureCollection<SimpleFeatureType, SimpleFeature> featureCollection;
-
-		Map<String, URL> connectParameters = new HashMap<>();
-		connectParameters.put("url", shp);
-		DataStore dataStore = null;
+		OpenStore store = openStore(shp);
 		try {
-			dataStore = DataStoreFinder.getDataStore(connectParameters);
-			String[] typeNames = dataStore.getTypeNames();
-			String name = null;
-			if (typeNames.length == 1) {
-				name = typeNames[0];
-			} else {
-				throw new RuntimeException("DataStore has no available features. I don't know how to deal with this");
-			}
+			SimpleFeatureCollection featureCollection = store.dataStore.getFeatureSource(getTypeName(store.dataStore)).getFeatures();
+			return new StoreBackedFeatureCollection(featureCollection, store);
+		} catch (IOException | RuntimeException e) {
+			store.close();
+			throw e;
+		}
+	}
 
-			if (StringUtils.isBlank(name)) {
-				throw new RuntimeException("DataStore name list is missing.");
-			}
+	/**
+	 * Streams the features of a shapefile to a consumer in a single pass. The
+	 * filter and property names of the query are handed to the shapefile
+	 * reader, so features outside a bounding box filter are skipped before
+	 * they are built. The reader and store are released before returning,
+	 * also when the consumer throws.
+	 *
+	 * Features must not be used after the consumer returns.
+	 *
+	 * @param shp
+	 * @param query Null value allowed. Will visit every feature with every
+	 * attribute
+	 * @param consumer
+	 * @throws IOException
+	 */
+	public static void forEachFeature(URL shp, Query query, Consumer<SimpleFeature> consumer) throws IOException {
+		if (null == shp) {
+			throw new NullPointerException("The shapefile url cannot be null");
+		}
 
-			FeatureSource<SimpleFeatureType, SimpleFeature> featureSource = dataStore.getFeatureSource(name);
-			featureCollection = featureSource.getFeatures();
-		} finally {
-			if (dataStore != null) {
-				dataStore.dispose();
+		try (OpenStore store = openStore(shp)) {
+			String typeName = getTypeName(store.dataStore);
+			Query typedQuery = query == null ? new Query() : new Query(query);
+			typedQuery.setTypeName(typeName);
+			try (FeatureReader<SimpleFeatureType, SimpleFeature> reader = store.dataStore.getFeatureReader(typedQuery, Transaction.AUTO_COMMIT)) {
+				while (reader.hasNext()) {
+					consumer.accept(reader.next());
+				}
 			}
 		}
-		return featureCollection;
+	}
+
+	/**
+	 * Leases a store from the pool, or opens one if pooling is off
+	 */
+	private static OpenStore openStore(URL shp) throws IOException {
+		DataStoreCache cache = dataStoreCache;
+		if (cache == null) {
+			DataStore dataStore = DataStoreCache.FINDER_FACTORY.create(shp);
+			return new OpenStore(dataStore, dataStore::dispose);
+		}
+		DataStoreCache.Lease lease = cache.acquire(shp);
+		return new OpenStore(lease.getDataStore(), lease::close);
+	}
+
+	private static final class OpenStore implements AutoCloseable {
+
+		private final DataStore dataStore;
+		private final Runnable release;
+
+		OpenStore(DataStore dataStore, Runnable release) {
+			this.dataStore = dataStore;
+			this.release = release;
+		}
+
+		@Override
+		public void close() {
+			release.run();
+		}
+	}
+
+	private static String getTypeName(DataStore dataStore) throws IOException {
+		String[] typeNames = dataStore.getTypeNames();
+		String name = null;
+		if (typeNames.length == 1) {
+			name = typeNames[0];
+		} else {
+			throw new RuntimeException("DataStore has no available features. I don't know how to deal with this");
+		}
+
+		if (StringUtils.isBlank(name)) {
+			throw new RuntimeException("DataStore name list is missing.");
+		}
+		return name;
 	}
 
 	public static SimpleFeatureCollection getEmptyFeatureCollection() {
@@ -1,36 +1,67 @@
 package gov.usgs.cida.owsutils.commons.shapefile.utils;
 
 import com.vividsolutions.jts.geom.CoordinateSequenceFactory;
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.GeometryFactory;
 import java.io.File;
+import java.net.URL;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.Iterator;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentHashMap;
+import org.geotools.data.DataUtilities;
 import org.geotools.data.shapefile.dbf.DbaseFileHeader;
-import org.geotools.data.shapefile.dbf.DbaseFileReader;
+import org.geotools.data.shapefile.files.ShpFileType;
 import org.geotools.data.shapefile.files.ShpFiles;
+import org.geotools.data.shapefile.shp.IndexFile;
 import org.geotools.data.shapefile.shp.ShapeHandler;
-import org.geotools.data.shapefile.shp.ShapefileReader;
-import org.geotools.data.shapefile.shp.ShapefileReader.Record;
+import org.geotools.data.shapefile.shp.ShapeType;
+import org.geotools.data.shapefile.shp.ShapefileException;
 import org.slf4j.LoggerFactory;
 
 /**
  * Read a shapefile, including the M values (which the usual ShpaefileDataStore
  * discards).
  *
+ * Every call to {@link IterableShapefileReader#iterator()} returns an
+ * independent {@link ShapefileIterator} with its own readers over the shared
+ * ShpFiles. Using this reader directly as an Iterator goes through a single
+ * iterator of its own, opened on the first call to hasNext() or next(),
+ * which is not thread safe.
+ *
  * @author rhayes
  *
  */
 public class IterableShapefileReader implements Iterable<ShapeAndAttributes>, Iterator<ShapeAndAttributes>, AutoCloseable {
 
 	private static final org.slf4j.Logger LOGGER = LoggerFactory.getLogger(IterableShapefileReader.class);
-	private ShapefileReader rdr;
-	private DbaseFileReader dbf;
-	public boolean initialized = false;
-	private File file;
+	private ShapefileIterator ownIterator = null;
+	private DbaseFileHeader dbfHeader;
+	/**
+	 * @deprecated Set once the iterator behind
+	 * {@link IterableShapefileReader#hasNext()} and
+	 * {@link IterableShapefileReader#next()} is opened. Iterators returned by
+	 * {@link IterableShapefileReader#iterator()} are independent of it.
+	 */
+	@Deprecated
+	public volatile boolean initialized = false;
 	private ShapeHandler shapeHandler;
 	private ShpFiles shapeFiles;
+	private final Set<AutoCloseable> openReaders = ConcurrentHashMap.newKeySet();
+	private volatile int[] selectedFields = null;
+	private volatile Envelope bboxFilter = null;
+	private int[] recordOffsets = null;
+	private ShapefileRecordReader randomAccessReader = null;
+	private ShapefileSpatialIndex spatialIndex = null;
 
+	/**
+	 *
+	 * @param shapeFiles
+	 * @param shapeHandler
+	 * @throws RuntimeException if the .shp or .dbf can not be read
+	 */
 	public IterableShapefileReader(ShpFiles shapeFiles, ShapeHandler shapeHandler) {
 		if (shapeHandler == null) {
 			throw new IllegalArgumentException("A ShapeHandler is required");
@@ -40,65 +71,384 @@ public class IterableShapefileReader implements Iterable<ShapeAndAttributes>, It
 		init();
 	}
 
+	/**
+	 * Reads line shapefiles with a {@link MultiLineZHandler} into
+	 * {@link PackedXYZMCoordinateSequence}s, other shapefiles with the default
+	 * handler for their shape type
+	 *
+	 * @param shapeFiles
+	 * @throws RuntimeException if the .shp or .dbf can not be read
+	 */
 	public IterableShapefileReader(ShpFiles shapeFiles) {
 		this.shapeFiles = shapeFiles;
 		init();
 	}
 
+	/**
+	 * Opens the shapefile once to check it can be read and to keep the dbf
+	 * header, through readers closed right after. No readers stay open until
+	 * records are read.
+	 */
+	private void init() {
+		try (ShapefileRecordReader reader = openRecordReader(false)) {
+			dbfHeader = reader.getDbfHeader();
+			if (shapeHandler == null) {
+				shapeHandler = getDefaultHandler(reader.getShapeType());
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * @param shapeType
+	 * @return a handler reading into packed coordinate sequences, which keep
+	 * the ordinates of a line in arrays rather than an object per vertex, or
+	 * null to use the default handler for the shape type
+	 * @throws ShapefileException
+	 */
+	private static ShapeHandler getDefaultHandler(ShapeType shapeType) throws ShapefileException {
+		if (shapeType == ShapeType.ARC || shapeType == ShapeType.ARCM || shapeType == ShapeType.ARCZ) {
+			return new MultiLineZHandler(shapeType);
+		}
+		return null;
+	}
+
 	public DbaseFileHeader getDbfHeader() {
-		return dbf.getHeader();
+		return dbfHeader;
 	}
 
 	public ShpFiles getShpFiles() {
 		return shapeFiles;
 	}
 
-	private void init() {
-		initialized = false;
+	/**
+	 * Limits the dbf fields decoded by
+	 * {@link ShapeAndAttributes#readAttributes()} for records read next by
+	 * this reader and from iterators created after this call
+	 *
+	 * @param fieldNames names of the fields, in the order they should be read.
+	 * No names select no fields
+	 */
+	public void setSelectedFields(String... fieldNames) {
+		DbaseFileHeader header = getDbfHeader();
+		int[] fieldIndexes = new int[fieldNames.length];
+		for (int nIdx = 0; nIdx < fieldNames.length; nIdx++) {
+			fieldIndexes[nIdx] = -1;
+			for (int fieldIdx = 0; fieldIdx < header.getNumFields(); fieldIdx++) {
+				if (header.getFieldName(fieldIdx).equals(fieldNames[nIdx])) {
+					fieldIndexes[nIdx] = fieldIdx;
+					break;
+				}
+			}
+			if (fieldIndexes[nIdx] == -1) {
+				throw new IllegalArgumentException("Field " + fieldNames[nIdx] + " does not exist in the dbf file");
+			}
+		}
+		applySelectedFields(fieldIndexes);
+	}
 
+	/**
+	 * Limits the dbf fields decoded by
+	 * {@link ShapeAndAttributes#readAttributes()} for records read next by
+	 * this reader and from iterators created after this call
+	 *
+	 * @param fieldIndexes indexes of the fields, in the order they should be
+	 * read. Null value allowed. Will select all fields
+	 */
+	public void setSelectedFieldIndexes(int... fieldIndexes) {
+		if (fieldIndexes != null) {
+			int numFields = getDbfHeader().getNumFields();
+			for (int fieldIdx : fieldIndexes) {
+				if (fieldIdx < 0 || fieldIdx >= numFields) {
+					throw new IllegalArgumentException("Field index " + fieldIdx + " does not exist in the dbf file");
+				}
+			}
+			fieldIndexes = fieldIndexes.clone();
+		}
+		applySelectedFields(fieldIndexes);
+	}
+
+	private void applySelectedFields(int[] fieldIndexes) {
+		this.selectedFields = fieldIndexes;
+		synchronized (this) {
+			if (ownIterator != null) {
+				ownIterator.getRecordReader().setSelectedFields(fieldIndexes);
+			}
+		}
+	}
+
+	/**
+	 * @return indexes of the selected dbf fields, null if all fields are
+	 * selected
+	 */
+	public int[] getSelectedFields() {
+		return selectedFields == null ? null : selectedFields.clone();
+	}
+
+	/**
+	 * Skips records whose bounding box does not intersect an area of interest,
+	 * for records read next by this reader and from iterators and
+	 * spliterators created after this call. Records are compared on the
+	 * bounding box stored in the .shp, so the geometry and dbf row of a
+	 * skipped record are never decoded.
+	 *
+	 * @param bboxFilter Null value allowed. Will return all records
+	 */
+	public void setBBoxFilter(Envelope bboxFilter) {
+		if (bboxFilter != null) {
+			bboxFilter = new Envelope(bboxFilter);
+		}
+		this.bboxFilter = bboxFilter;
+		synchronized (this) {
+			if (ownIterator != null) {
+				ownIterator.getRecordReader().setBBoxFilter(bboxFilter);
+			}
+		}
+	}
+
+	public Envelope getBBoxFilter() {
+		return bboxFilter == null ? null : new Envelope(bboxFilter);
+	}
+
+	/**
+	 * Opens the iterator behind {@link IterableShapefileReader#hasNext()} and
+	 * {@link IterableShapefileReader#next()} on first use, so readers only
+	 * handing out iterators and spliterators do not map the files once more
+	 *
+	 * @return
+	 */
+	private synchronized ShapefileIterator getOwnIterator() {
+		if (ownIterator == null) {
+			ownIterator = iterator();
+			initialized = true;
+		}
+		return ownIterator;
+	}
+
+	/**
+	 * Opens a new pair of readers over the shapefile. The readers are closed
+	 * along with this reader if still open by then.
+	 *
+	 * @param useMemoryMapped
+	 * @return
+	 * @throws IOException
+	 */
+	ShapefileRecordReader openRecordReader(boolean useMemoryMapped) throws IOException {
+		CoordinateSequenceFactory coordSeqFactory = com.vividsolutions.jtsexample.geom.ExtendedCoordinateSequenceFactory.instance();
+		GeometryFactory gf = new GeometryFactory(coordSeqFactory);
+
+		Charset charset = Charset.defaultCharset();
+		ShapefileRecordReader reader = new ShapefileRecordReader(shapeFiles, shapeHandler, gf, charset, useMemoryMapped, selectedFields, openReaders);
+		reader.setBBoxFilter(bboxFilter);
+		return reader;
+	}
+
+	/**
+	 * @return a new iterator, positioned at the first record, independent of
+	 * any other iterator over this shapefile
+	 */
+	@Override
+	public ShapefileIterator iterator() {
 		try {
-			CoordinateSequenceFactory coordSeqFactory = com.vividsolutions.jtsexample.geom.ExtendedCoordinateSequenceFactory.instance();
-			GeometryFactory gf = new GeometryFactory(coordSeqFactory);
-			
-			rdr = new ShapefileReader(shapeFiles, false, true, gf);
-			rdr.setHandler(this.shapeHandler);
-
-			Charset charset = Charset.defaultCharset();
-			dbf = new DbaseFileReader(shapeFiles, false, charset);
+			return new ShapefileIterator(openRecordReader(true));
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
 	}
 
-	@Override
-	public synchronized Iterator<ShapeAndAttributes> iterator() {
-		if (initialized) {
-			init();
+	/**
+	 * Reads a single record, positioning the readers with the record offset
+	 * from the .shx and the record length from the dbf header instead of
+	 * reading the records in front of it. The bounding box filter does not
+	 * apply.
+	 *
+	 * Records are read through a reader kept open for random access, so the
+	 * shape and row of the result are only valid until the next call.
+	 *
+	 * @param recordIndex zero based record index
+	 * @return
+	 */
+	public synchronized ShapeAndAttributes get(int recordIndex) {
+		int[] offsets = getRecordOffsets();
+		if (recordIndex < 0 || recordIndex >= offsets.length) {
+			throw new IndexOutOfBoundsException("Record " + recordIndex + " does not exist, record count is " + offsets.length);
+		}
+		try {
+			if (randomAccessReader == null || randomAccessReader.isClosed()) {
+				randomAccessReader = openRecordReader(false);
+			}
+			randomAccessReader.setSelectedFields(selectedFields);
+			randomAccessReader.goTo(recordIndex, offsets[recordIndex]);
+			return randomAccessReader.next();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
 		}
-		return this;
 	}
 
-	@Override
-	public synchronized boolean hasNext() {
+	/**
+	 * Creates an iterator over a range of records, starting at the record
+	 * offset from the .shx. Records outside the bounding box filter, if any,
+	 * are skipped.
+	 *
+	 * @param from index of the first record, inclusive
+	 * @param to index of the last record, exclusive
+	 * @return
+	 */
+	public ShapefileIterator range(int from, int to) {
+		int[] offsets = getRecordOffsets();
+		if (from < 0 || to > offsets.length || from > to) {
+			throw new IndexOutOfBoundsException("Range " + from + " to " + to + " is not within record count " + offsets.length);
+		}
 		try {
-			return rdr.hasNext();
+			ShapefileRecordReader reader = openRecordReader(false);
+			if (from < to) {
+				reader.goTo(from, offsets[from]);
+				reader.setFence(to);
+			} else {
+				// Empty range
+				reader.setFence(0);
+			}
+			return new ShapefileIterator(reader);
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
 	}
 
-	@Override
-	public synchronized ShapeAndAttributes next() {
-		initialized = true;
+	/**
+	 * Loads the spatial index persisted next to the shapefile. If there is
+	 * none, or the .shp changed since it was built, the index is built in one
+	 * pass over the .shp and persisted for the next reader.
+	 *
+	 * @see ShapefileSpatialIndex
+	 * @return
+	 */
+	public synchronized ShapefileSpatialIndex getSpatialIndex() {
+		if (spatialIndex != null) {
+			return spatialIndex;
+		}
+
 		try {
-			Record rec = rdr.nextRecord();
-			DbaseFileReader.Row row = dbf.readRow();
-			return new ShapeAndAttributes(rec, row);
+			File shp = shapeFiles.isLocal() ? DataUtilities.urlToFile(new URL(shapeFiles.get(ShpFileType.SHP))) : null;
+			File indexFile = shp == null ? null : ShapefileSpatialIndex.getIndexFile(shp);
+			if (indexFile != null && indexFile.exists()) {
+				try {
+					ShapefileSpatialIndex persisted = ShapefileSpatialIndex.read(indexFile);
+					if (persisted.isCurrent(shp)) {
+						spatialIndex = persisted;
+						return spatialIndex;
+					}
+					LOGGER.debug("Spatial index {} is out of date", indexFile);
+				} catch (IOException ex) {
+					LOGGER.warn("Could not read spatial index " + indexFile + ", rebuilding it", ex);
+				}
+			}
+
+			try (ShapefileRecordReader reader = openRecordReader(false)) {
+				spatialIndex = ShapefileSpatialIndex.build(reader, shp);
+			}
+			if (indexFile != null) {
+				try {
+					spatialIndex.write(indexFile);
+				} catch (IOException ex) {
+					LOGGER.warn("Could not persist spatial index " + indexFile, ex);
+				}
+			}
+			return spatialIndex;
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
 	}
 
+	/**
+	 * Uses the spatial index to iterate over the records whose bounding box
+	 * intersects an envelope, in record order, without reading any other
+	 * record.
+	 *
+	 * @param envelope
+	 * @return
+	 */
+	public ShapefileIterator query(Envelope envelope) {
+		int[] recordIndexes = getSpatialIndex().query(envelope);
+		try {
+			return new ShapefileIterator(openRecordReader(false), recordIndexes, getRecordOffsets());
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Uses the spatial index to find the record whose bounding box is closest
+	 * to a point. Like {@link IterableShapefileReader#get(int)} the result is
+	 * only valid until the next call.
+	 *
+	 * @param x
+	 * @param y
+	 * @return null if the shapefile has no records
+	 */
+	public ShapeAndAttributes nearest(double x, double y) {
+		int recordIndex = getSpatialIndex().nearest(x, y);
+		return recordIndex == -1 ? null : get(recordIndex);
+	}
+
+	/**
+	 * @return number of records in the shapefile, according to the .shx
+	 */
+	public int getRecordCount() {
+		return getRecordOffsets().length;
+	}
+
+	/**
+	 * Reads the record offsets in bytes from the .shx on first use
+	 *
+	 * @return
+	 */
+	synchronized int[] getRecordOffsets() {
+		if (recordOffsets == null) {
+			try {
+				IndexFile indexFile = new IndexFile(shapeFiles, false);
+				try {
+					int[] offsets = new int[indexFile.getRecordCount()];
+					for (int rIdx = 0; rIdx < offsets.length; rIdx++) {
+						offsets[rIdx] = indexFile.getOffsetInBytes(rIdx);
+					}
+					recordOffsets = offsets;
+				} finally {
+					indexFile.close();
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		return recordOffsets;
+	}
+
+	/**
+	 * Creates a spliterator over all records of the shapefile, independent of
+	 * any iterator, which can be used for parallel streams:
+	 *
+	 * <pre>
+	 * StreamSupport.stream(reader.spliterator(), true)
+	 * </pre>
+	 *
+	 * @see ShapefileSpliterator
+	 * @return
+	 */
+	@Override
+	public Spliterator<ShapeAndAttributes> spliterator() {
+		return new ShapefileSpliterator(this);
+	}
+
+	@Override
+	public boolean hasNext() {
+		return getOwnIterator().hasNext();
+	}
+
+	@Override
+	public ShapeAndAttributes next() {
+		return getOwnIterator().next();
+	}
+
 	@Override
 	public void remove() {
 		throw new UnsupportedOperationException("Nope, sorry");
@@ -106,15 +456,12 @@ public class IterableShapefileReader implements Iterable<ShapeAndAttributes>, It
 
 	@Override
 	public void close() {
-		try {
-			rdr.close();
-		} catch (IOException ex) {
-			LOGGER.warn("Could not close ShapefileReader", ex);
-		}
-		try {
-			dbf.close();
-		} catch (IOException ex) {
-			LOGGER.warn("Could not close DBaseFileReader", ex);
+		for (AutoCloseable reader : openReaders) {
+			try {
+				reader.close();
+			} catch (Exception ex) {
+				LOGGER.warn("Could not close shapefile reader", ex);
+			}
 		}
 		shapeFiles.dispose();
 	}
@@ -44,6 +44,19 @@ public class MultiLineZHandler implements ShapeHandler {
 		this.geometryFactory = gf;
 	}
 
+	/**
+	 * Create a MultiLineHandler for one of: <br>
+	 * ShapeType.ARC,ShapeType.ARCM,ShapeType.ARCZ that reads into
+	 * {@link PackedXYZMCoordinateSequence}s
+	 *
+	 * @param type The ShapeType to use.
+	 * @throws ShapefileException If the ShapeType is not correct (see
+	 * constructor).
+	 */
+	public MultiLineZHandler(ShapeType type) throws ShapefileException {
+		this(type, new GeometryFactory(PackedXYZMCoordinateSequenceFactory.instance()));
+	}
+
 	/**
 	 * Create a MultiLineHandler for one of: <br>
 	 * ShapeType.ARC,ShapeType.ARCM,ShapeType.ARCZ
@@ -123,13 +136,31 @@ public class MultiLineZHandler implements ShapeHandler {
 		for (int i = 0; i < numParts; i++) {
 			partOffsets[i] = buffer.getInt();
 		}
+		final DoubleBuffer doubleBuffer = buffer.asDoubleBuffer();
+		CoordinateSequence[] lines;
+		if (geometryFactory.getCoordinateSequenceFactory() instanceof PackedXYZMCoordinateSequenceFactory) {
+			lines = readPacked(numParts, numPoints, partOffsets, doubleBuffer);
+		} else {
+			lines = readSequences(numParts, numPoints, partOffsets, doubleBuffer, dimensions);
+		}
+
+		// Prepare line strings and return the multilinestring
+		LineString[] lineStrings = new LineString[numParts];
+		for (int part = 0; part < numParts; part++) {
+			lineStrings[part] = geometryFactory.createLineString(lines[part]);
+		}
+
+		return geometryFactory.createMultiLineString(lineStrings);
+	}
+
+	private CoordinateSequence[] readSequences(int numParts, int numPoints,
+			int[] partOffsets, final DoubleBuffer doubleBuffer, int dimensions) {
 		// read the first two coordinates and start building the coordinate
 		// sequences
 		CoordinateSequence[] lines = new CoordinateSequence[numParts];
 		int finish, start = 0;
 		int length = 0;
 		boolean clonePoint;
-		final DoubleBuffer doubleBuffer = buffer.asDoubleBuffer();
 		for (int part = 0; part < numParts; part++) {
 			start = partOffsets[part];
 
@@ -177,13 +208,64 @@ public class MultiLineZHandler implements ShapeHandler {
 					doubleBuffer, 3);
 		}
 
-		// Prepare line strings and return the multilinestring
-		LineString[] lineStrings = new LineString[numParts];
+		return lines;
+	}
+
+	/**
+	 * Reads each ordinate array of every part in bulk straight into its
+	 * packed coordinate sequence
+	 */
+	private CoordinateSequence[] readPacked(int numParts, int numPoints,
+			int[] partOffsets, final DoubleBuffer doubleBuffer) {
+		boolean hasZ = shapeType == ShapeType.ARCZ;
+		boolean hasM = hasZ || shapeType == ShapeType.ARCM;
+		PackedXYZMCoordinateSequence[] lines = new PackedXYZMCoordinateSequence[numParts];
 		for (int part = 0; part < numParts; part++) {
-			lineStrings[part] = geometryFactory.createLineString(lines[part]);
+			int length = getPartLength(part, numParts, numPoints, partOffsets);
+			PackedXYZMCoordinateSequence cs = new PackedXYZMCoordinateSequence(length == 1 ? 2 : length, hasZ, hasM);
+			doubleBuffer.get(cs.xy, 0, length * 2);
+			if (length == 1) {
+				cs.xy[2] = cs.xy[0];
+				cs.xy[3] = cs.xy[1];
+			}
+			lines[part] = cs;
 		}
 
-		return geometryFactory.createMultiLineString(lineStrings);
+		if (hasZ) {
+			// skip the z range
+			doubleBuffer.position(doubleBuffer.position() + 2);
+			for (int part = 0; part < numParts; part++) {
+				readPackedOrdinates(lines[part].z, getPartLength(part, numParts, numPoints, partOffsets), doubleBuffer);
+			}
+		}
+
+		if (hasM) {
+			// skip the m range
+			doubleBuffer.position(doubleBuffer.position() + 2);
+			for (int part = 0; part < numParts; part++) {
+				readPackedOrdinates(lines[part].m, getPartLength(part, numParts, numPoints, partOffsets), doubleBuffer);
+			}
+		}
+
+		return lines;
+	}
+
+	private static int getPartLength(int part, int numParts, int numPoints, int[] partOffsets) {
+		int finish = (part == (numParts - 1)) ? numPoints : partOffsets[part + 1];
+		return finish - partOffsets[part];
+	}
+
+	private static void readPackedOrdinates(double[] ordinates, int length, final DoubleBuffer doubleBuffer) {
+		doubleBuffer.get(ordinates, 0, length);
+		for (int i = 0; i < length; i++) {
+			// Any floating point number smaller than –10e38 is considered by a shapefile reader to represent a "no data" value.
+			if (ordinates[i] < -1.0e38) {
+				ordinates[i] = Double.NaN;
+			}
+		}
+		if (length == 1) {
+			ordinates[1] = ordinates[0];
+		}
 	}
 
 	protected void readExtraDimension(int numParts, int numPoints,
@@ -205,9 +287,6 @@ public class MultiLineZHandler implements ShapeHandler {
 			}
 
 			length = finish - start;
-			if (length == 1) {
-				length = 2;
-			}
 
 			double[] z = new double[length];
 			doubleBuffer.get(z);
@@ -219,6 +298,11 @@ public class MultiLineZHandler implements ShapeHandler {
 				}
 				lines[part].setOrdinate(i, ordIdx, value);
 			}
+
+			// Single points were cloned into a two point line
+			if (length == 1) {
+				lines[part].setOrdinate(1, ordIdx, lines[part].getOrdinate(0, ordIdx));
+			}
 		}
 	}
 
@@ -0,0 +1,182 @@
+package gov.usgs.cida.owsutils.commons.shapefile.utils;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jtsexample.geom.ExtendedCoordinate;
+import java.util.Arrays;
+
+/**
+ * A CoordinateSequence holding X, Y and optional Z and M ordinates in
+ * primitive arrays rather than one Coordinate object per vertex. X and Y are
+ * interleaved the way they are stored in a shapefile record so they can be
+ * bulk read straight into place.
+ *
+ * Coordinates handed out are ExtendedCoordinates so M values remain available
+ * to code written against ExtendedCoordinateSequence.
+ */
+public class PackedXYZMCoordinateSequence implements CoordinateSequence {
+
+	double[] xy;
+	double[] z;
+	double[] m;
+
+	/**
+	 *
+	 * @param size amount of coordinates
+	 * @param hasZ
+	 * @param hasM
+	 */
+	public PackedXYZMCoordinateSequence(int size, boolean hasZ, boolean hasM) {
+		this.xy = new double[size * 2];
+		this.z = hasZ ? newOrdinates(size) : null;
+		this.m = hasM ? newOrdinates(size) : null;
+	}
+
+	private PackedXYZMCoordinateSequence(PackedXYZMCoordinateSequence sequence) {
+		this.xy = sequence.xy.clone();
+		this.z = sequence.z == null ? null : sequence.z.clone();
+		this.m = sequence.m == null ? null : sequence.m.clone();
+	}
+
+	private static double[] newOrdinates(int size) {
+		double[] ordinates = new double[size];
+		Arrays.fill(ordinates, Double.NaN);
+		return ordinates;
+	}
+
+	public boolean hasZ() {
+		return z != null;
+	}
+
+	public boolean hasM() {
+		return m != null;
+	}
+
+	@Override
+	public int getDimension() {
+		if (m != null) {
+			return 4;
+		}
+		return z != null ? 3 : 2;
+	}
+
+	@Override
+	public Coordinate getCoordinate(int i) {
+		return getCoordinateCopy(i);
+	}
+
+	@Override
+	public Coordinate getCoordinateCopy(int i) {
+		return new ExtendedCoordinate(xy[i * 2], xy[i * 2 + 1], getZ(i), getM(i));
+	}
+
+	@Override
+	public void getCoordinate(int index, Coordinate coord) {
+		coord.x = xy[index * 2];
+		coord.y = xy[index * 2 + 1];
+		coord.z = getZ(index);
+		if (coord instanceof ExtendedCoordinate) {
+			((ExtendedCoordinate) coord).setM(getM(index));
+		}
+	}
+
+	@Override
+	public double getX(int index) {
+		return xy[index * 2];
+	}
+
+	@Override
+	public double getY(int index) {
+		return xy[index * 2 + 1];
+	}
+
+	public double getZ(int index) {
+		return z == null ? Double.NaN : z[index];
+	}
+
+	public double getM(int index) {
+		return m == null ? Double.NaN : m[index];
+	}
+
+	@Override
+	public double getOrdinate(int index, int ordinateIndex) {
+		switch (ordinateIndex) {
+			case CoordinateSequence.X:
+				return getX(index);
+			case CoordinateSequence.Y:
+				return getY(index);
+			case CoordinateSequence.Z:
+				return getZ(index);
+			case CoordinateSequence.M:
+				return getM(index);
+			default:
+				return Double.NaN;
+		}
+	}
+
+	@Override
+	public int size() {
+		return xy.length / 2;
+	}
+
+	@Override
+	public void setOrdinate(int index, int ordinateIndex, double value) {
+		switch (ordinateIndex) {
+			case CoordinateSequence.X:
+				xy[index * 2] = value;
+				break;
+			case CoordinateSequence.Y:
+				xy[index * 2 + 1] = value;
+				break;
+			case CoordinateSequence.Z:
+				if (z == null) {
+					z = newOrdinates(size());
+				}
+				z[index] = value;
+				break;
+			case CoordinateSequence.M:
+				if (m == null) {
+					m = newOrdinates(size());
+				}
+				m[index] = value;
+				break;
+			default:
+				throw new IllegalArgumentException("Invalid ordinate index: " + ordinateIndex);
+		}
+	}
+
+	@Override
+	public Coordinate[] toCoordinateArray() {
+		Coordinate[] coordinates = new Coordinate[size()];
+		for (int i = 0; i < coordinates.length; i++) {
+			coordinates[i] = getCoordinateCopy(i);
+		}
+		return coordinates;
+	}
+
+	@Override
+	public Envelope expandEnvelope(Envelope env) {
+		for (int i = 0; i < xy.length; i += 2) {
+			env.expandToInclude(xy[i], xy[i + 1]);
+		}
+		return env;
+	}
+
+	@Override
+	public Object clone() {
+		return new PackedXYZMCoordinateSequence(this);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder("(");
+		for (int i = 0; i < size(); i++) {
+			if (i > 0) {
+				builder.append(", ");
+			}
+			builder.append(getCoordinateCopy(i));
+		}
+		return builder.append(")").toString();
+	}
+}
@@ -0,0 +1,73 @@
+package gov.usgs.cida.owsutils.commons.shapefile.utils;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.CoordinateSequenceFactory;
+import com.vividsolutions.jtsexample.geom.ExtendedCoordinate;
+import java.io.Serializable;
+
+/**
+ * Creates {@link PackedXYZMCoordinateSequence}s. A GeometryFactory using this
+ * factory lets {@link MultiLineZHandler} read ordinates directly into their
+ * final storage.
+ */
+public class PackedXYZMCoordinateSequenceFactory implements CoordinateSequenceFactory, Serializable {
+
+	private static final long serialVersionUID = 1L;
+	private static final PackedXYZMCoordinateSequenceFactory INSTANCE = new PackedXYZMCoordinateSequenceFactory();
+
+	public static PackedXYZMCoordinateSequenceFactory instance() {
+		return INSTANCE;
+	}
+
+	private PackedXYZMCoordinateSequenceFactory() {
+	}
+
+	private Object readResolve() {
+		return INSTANCE;
+	}
+
+	@Override
+	public CoordinateSequence create(Coordinate[] coordinates) {
+		boolean hasZ = false;
+		boolean hasM = false;
+		for (Coordinate coordinate : coordinates) {
+			hasZ |= !Double.isNaN(coordinate.z);
+			hasM |= coordinate instanceof ExtendedCoordinate;
+		}
+
+		PackedXYZMCoordinateSequence sequence = new PackedXYZMCoordinateSequence(coordinates.length, hasZ, hasM);
+		for (int i = 0; i < coordinates.length; i++) {
+			sequence.xy[i * 2] = coordinates[i].x;
+			sequence.xy[i * 2 + 1] = coordinates[i].y;
+			if (hasZ) {
+				sequence.z[i] = coordinates[i].z;
+			}
+			if (hasM && coordinates[i] instanceof ExtendedCoordinate) {
+				sequence.m[i] = ((ExtendedCoordinate) coordinates[i]).getM();
+			}
+		}
+		return sequence;
+	}
+
+	@Override
+	public CoordinateSequence create(CoordinateSequence coordSeq) {
+		if (coordSeq instanceof PackedXYZMCoordinateSequence) {
+			return (CoordinateSequence) coordSeq.clone();
+		}
+
+		int dimension = coordSeq.getDimension();
+		PackedXYZMCoordinateSequence sequence = new PackedXYZMCoordinateSequence(coordSeq.size(), dimension > 2, dimension > 3);
+		for (int i = 0; i < coordSeq.size(); i++) {
+			for (int ordinateIndex = 0; ordinateIndex < dimension && ordinateIndex < 4; ordinateIndex++) {
+				sequence.setOrdinate(i, ordinateIndex, coordSeq.getOrdinate(i, ordinateIndex));
+			}
+		}
+		return sequence;
+	}
+
+	@Override
+	public CoordinateSequence create(int size, int dimension) {
+		return new PackedXYZMCoordinateSequence(size, dimension > 2, dimension > 3);
+	}
+}
@@ -23,6 +23,23 @@ import org.slf4j.LoggerFactory;
 public class ProjectionUtils {
 
     private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(ProjectionUtils.class);
+    private static volatile EPSGLookupCache lookupCache = new EPSGLookupCache();
+
+    /**
+     * @return the cache used for WKT to EPSG lookups, null if caching is off
+     */
+    public static EPSGLookupCache getLookupCache() {
+        return lookupCache;
+    }
+
+    /**
+     * Replaces the cache used for WKT to EPSG lookups
+     *
+     * @param cache Null value allowed. Will turn off caching
+     */
+    public static void setLookupCache(EPSGLookupCache cache) {
+        lookupCache = cache;
+    }
 
     public static String getProjectionFromShapefileZip(File shapefileZip, boolean useBaseCRSFailover) throws IOException, ProjectionException, FactoryException {
         File temporaryDirectory = null;
@@ -124,6 +141,18 @@ public class ProjectionUtils {
             return result;
         }
 
+        EPSGLookupCache cache = lookupCache;
+        if (cache == null) {
+            result = lookupEPSGFromWKT(wkt, useBaseCRSFailover);
+        } else {
+            result = cache.get(wkt, useBaseCRSFailover, ProjectionUtils::lookupEPSGFromWKT);
+        }
+        LOG.debug("Found " + result);
+        return result;
+    }
+
+    private static String lookupEPSGFromWKT(final String wkt, boolean useBaseCRSFailover) throws FactoryException {
+        String result;
         CoordinateReferenceSystem crs = null;
         try {
             crs = CRS.parseWKT(wkt);
@@ -136,7 +165,6 @@ public class ProjectionUtils {
         if (result == null && crs instanceof ProjectedCRS && useBaseCRSFailover) {
             result = CRS.lookupIdentifier(((GeneralDerivedCRS) crs).getBaseCRS(), true);
         }
-        LOG.debug("Found " + result);
         return result;
     }
 }
@@ -2,6 +2,7 @@ package gov.usgs.cida.owsutils.commons.shapefile.utils;
 
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.Point;
+import java.io.IOException;
 import java.util.Iterator;
 import org.geotools.data.shapefile.dbf.DbaseFileReader;
 import org.geotools.data.shapefile.dbf.DbaseFileReader.Row;
@@ -11,11 +12,51 @@ public class ShapeAndAttributes implements Iterable<Point> {
 
 	public final Record record;						// shape
 	public final DbaseFileReader.Row row;				// dbf record
+	private final int[] selectedFields;				// dbf fields to read
 
 	public ShapeAndAttributes(Record record, Row row) {
+		this(record, row, null);
+	}
+
+	/**
+	 *
+	 * @param record
+	 * @param row
+	 * @param selectedFields indexes of the dbf fields to read
+	 */
+	public ShapeAndAttributes(Record record, Row row, int[] selectedFields) {
 		super();
 		this.record = record;
 		this.row = row;
+		this.selectedFields = selectedFields;
+	}
+
+	/**
+	 * @return indexes of the dbf fields read by
+	 * {@link ShapeAndAttributes#readAttributes()}, null if none were selected
+	 */
+	public int[] getSelectedFields() {
+		return selectedFields == null ? null : selectedFields.clone();
+	}
+
+	/**
+	 * Decodes the selected dbf fields of this record. Fields that were not
+	 * selected are never decoded.
+	 *
+	 * @see IterableShapefileReader#setSelectedFields(java.lang.String...)
+	 * @return values of the selected fields, in selection order
+	 * @throws IOException
+	 */
+	public Object[] readAttributes() throws IOException {
+		if (selectedFields == null) {
+			throw new IllegalStateException("No dbf fields were selected for this record");
+		}
+
+		Object[] values = new Object[selectedFields.length];
+		for (int sIdx = 0; sIdx < selectedFields.length; sIdx++) {
+			values[sIdx] = row.read(selectedFields[sIdx]);
+		}
+		return values;
 	}
 
 	@Override
@@ -33,4 +74,13 @@ public class ShapeAndAttributes implements Iterable<Point> {
 	public Iterator<Point> iterator() {
 		return new PointIterator((Geometry) record.shape());
 	}
+
+	/**
+	 * Allocation free alternative to {@link ShapeAndAttributes#iterator()}
+	 *
+	 * @return a cursor positioned before the first vertex of the shape
+	 */
+	public VertexCursor vertexCursor() {
+		return new VertexCursor((Geometry) record.shape());
+	}
 }
@@ -0,0 +1,92 @@
+package gov.usgs.cida.owsutils.commons.shapefile.utils;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over the records of a shapefile with its own readers. Iterators
+ * handed out by {@link IterableShapefileReader#iterator()} are independent of
+ * each other, so each thread may scan the same shapefile with its own
+ * iterator without locking. A single iterator is not thread safe.
+ *
+ * Readers are closed once the last record has been read. Iterators abandoned
+ * early should be closed, or are closed along with their
+ * IterableShapefileReader.
+ */
+public class ShapefileIterator implements Iterator<ShapeAndAttributes>, AutoCloseable {
+
+	private final ShapefileRecordReader reader;
+	private final int[] recordIndexes;
+	private final int[] offsets;
+	private int position = 0;
+
+	ShapefileIterator(ShapefileRecordReader reader) {
+		this(reader, null, null);
+	}
+
+	/**
+	 * @param reader
+	 * @param recordIndexes records to visit, in order. Null value allowed.
+	 * Will visit all records
+	 * @param offsets offsets in bytes of all records, as found in the .shx
+	 */
+	ShapefileIterator(ShapefileRecordReader reader, int[] recordIndexes, int[] offsets) {
+		this.reader = reader;
+		this.recordIndexes = recordIndexes;
+		this.offsets = offsets;
+	}
+
+	ShapefileRecordReader getRecordReader() {
+		return reader;
+	}
+
+	@Override
+	public boolean hasNext() {
+		try {
+			if (recordIndexes != null) {
+				if (!reader.isClosed() && position < recordIndexes.length) {
+					return true;
+				}
+			} else if (reader.hasNext()) {
+				return true;
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		reader.close();
+		return false;
+	}
+
+	/**
+	 * The shape and row of the result are decoded lazily and are only valid
+	 * until the next call.
+	 *
+	 * @return
+	 */
+	@Override
+	public ShapeAndAttributes next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		try {
+			if (recordIndexes != null) {
+				int recordIndex = recordIndexes[position++];
+				reader.goTo(recordIndex, offsets[recordIndex]);
+			}
+			return reader.next();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException("Nope, sorry");
+	}
+
+	@Override
+	public void close() {
+		reader.close();
+	}
+}
@@ -0,0 +1,231 @@
+package gov.usgs.cida.owsutils.commons.shapefile.utils;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Set;
+import org.geotools.data.shapefile.dbf.DbaseFileHeader;
+import org.geotools.data.shapefile.dbf.DbaseFileReader;
+import org.geotools.data.shapefile.files.ShpFiles;
+import org.geotools.data.shapefile.shp.ShapeHandler;
+import org.geotools.data.shapefile.shp.ShapeType;
+import org.geotools.data.shapefile.shp.ShapefileReader;
+import org.geotools.data.shapefile.shp.ShapefileReader.Record;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A ShapefileReader and DbaseFileReader pair reading the records of one
+ * shapefile in step. Each pair has its own channels over the shared ShpFiles,
+ * so pairs may be used on separate threads, though a single pair may not.
+ */
+class ShapefileRecordReader implements AutoCloseable {
+
+	private static final org.slf4j.Logger LOGGER = LoggerFactory.getLogger(ShapefileRecordReader.class);
+	private final ShapefileReader rdr;
+	private final DbaseFileReader dbf;
+	private final DbaseFileHeader dbfHeader;
+	private final Set<AutoCloseable> openReaders;
+	private int[] selectedFields;
+	private Envelope bboxFilter;
+	private Record pending = null;
+	private int recordIndex = 0;
+	private int fence = Integer.MAX_VALUE;
+	private boolean closed = false;
+
+	/**
+	 *
+	 * @param shapeFiles
+	 * @param shapeHandler Null value allowed. Will use the default handler for
+	 * the shape type
+	 * @param geometryFactory
+	 * @param charset
+	 * @param useMemoryMapped
+	 * @param selectedFields indexes of the dbf fields records will read. Null
+	 * value allowed. Will select all fields
+	 * @param openReaders readers this reader registers with until closed
+	 * @throws IOException
+	 */
+	ShapefileRecordReader(ShpFiles shapeFiles, ShapeHandler shapeHandler, GeometryFactory geometryFactory, Charset charset, boolean useMemoryMapped, int[] selectedFields, Set<AutoCloseable> openReaders) throws IOException {
+		this.rdr = new ShapefileReader(shapeFiles, false, useMemoryMapped, geometryFactory);
+		if (shapeHandler != null) {
+			rdr.setHandler(shapeHandler);
+		}
+		try {
+			this.dbf = new DbaseFileReader(shapeFiles, false, charset);
+		} catch (IOException ex) {
+			rdr.close();
+			throw ex;
+		}
+		this.dbfHeader = dbf.getHeader();
+		setSelectedFields(selectedFields);
+		this.openReaders = openReaders;
+		openReaders.add(this);
+	}
+
+	DbaseFileHeader getDbfHeader() {
+		return dbfHeader;
+	}
+
+	/**
+	 * @return the shape type from the .shp header
+	 */
+	ShapeType getShapeType() {
+		return rdr.getHeader().getShapeType();
+	}
+
+	/**
+	 * @param selectedFields indexes of the dbf fields records will read. Null
+	 * value allowed. Will select all fields
+	 */
+	final void setSelectedFields(int[] selectedFields) {
+		if (selectedFields == null) {
+			selectedFields = new int[dbfHeader.getNumFields()];
+			for (int fieldIdx = 0; fieldIdx < selectedFields.length; fieldIdx++) {
+				selectedFields[fieldIdx] = fieldIdx;
+			}
+		}
+		this.selectedFields = selectedFields;
+	}
+
+	/**
+	 * @param bboxFilter only records whose bounding box intersects this
+	 * envelope will be returned. Null value allowed. Will return all records
+	 */
+	void setBBoxFilter(Envelope bboxFilter) {
+		this.bboxFilter = bboxFilter;
+	}
+
+	/**
+	 * @param fence index of the record {@link #hasNext()} stops before
+	 */
+	void setFence(int fence) {
+		this.fence = fence;
+	}
+
+	boolean hasNext() throws IOException {
+		if (closed) {
+			return false;
+		}
+		if (bboxFilter == null) {
+			return pending != null || (recordIndex < fence && rdr.hasNext());
+		}
+		return advance(fence);
+	}
+
+	/**
+	 * Moves to the next record matching the bounding box filter, comparing the
+	 * bounding box stored in the record header. The geometry of skipped
+	 * records is never decoded and their dbf rows are skipped without being
+	 * read.
+	 *
+	 * @param fence index of the record to stop before
+	 * @return true if a matching record is ready for {@link #next()}
+	 * @throws IOException
+	 */
+	boolean advance(int fence) throws IOException {
+		while (pending == null && recordIndex < fence && rdr.hasNext()) {
+			Record rec = rdr.nextRecord();
+			recordIndex++;
+			if (matches(rec)) {
+				pending = rec;
+			} else {
+				dbf.skip();
+			}
+		}
+		return pending != null;
+	}
+
+	private boolean matches(Record rec) {
+		if (bboxFilter == null) {
+			return true;
+		}
+		return rec.type != ShapeType.NULL
+				&& rec.minX <= bboxFilter.getMaxX() && rec.maxX >= bboxFilter.getMinX()
+				&& rec.minY <= bboxFilter.getMaxY() && rec.maxY >= bboxFilter.getMinY();
+	}
+
+	/**
+	 * The shape and row of the result are decoded lazily from this reader's
+	 * buffers and are only valid until the next call. With a bounding box
+	 * filter, {@link #hasNext()} moves the readers as well.
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	ShapeAndAttributes next() throws IOException {
+		Record rec = pending;
+		if (rec == null) {
+			rec = rdr.nextRecord();
+			recordIndex++;
+		}
+		pending = null;
+		DbaseFileReader.Row row = dbf.readRow();
+		return new ShapeAndAttributes(rec, row, selectedFields);
+	}
+
+	/**
+	 * Reads the next .shp record only, skipping its dbf row. The geometry of
+	 * the record is decoded lazily, so reading its bounding box costs nothing
+	 * more.
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	Record nextShapeRecord() throws IOException {
+		Record rec = pending;
+		if (rec == null) {
+			rec = rdr.nextRecord();
+			recordIndex++;
+		}
+		pending = null;
+		dbf.skip();
+		return rec;
+	}
+
+	/**
+	 * Positions both readers in front of a record
+	 *
+	 * @param recordIndex zero based record index
+	 * @param offsetInBytes offset of the record in the .shp, as found in the
+	 * .shx
+	 * @throws IOException
+	 */
+	void goTo(int recordIndex, int offsetInBytes) throws IOException {
+		rdr.goTo(offsetInBytes);
+		// DBF records are numbered from 1
+		dbf.goTo(recordIndex + 1);
+		this.recordIndex = recordIndex;
+		this.pending = null;
+	}
+
+	/**
+	 * @return index of the record the readers are positioned in front of
+	 */
+	int getRecordIndex() {
+		return pending == null ? recordIndex : recordIndex - 1;
+	}
+
+	boolean isClosed() {
+		return closed;
+	}
+
+	@Override
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			rdr.close();
+		} catch (IOException ex) {
+			LOGGER.warn("Could not close ShapefileReader", ex);
+		}
+		try {
+			dbf.close();
+		} catch (IOException ex) {
+			LOGGER.warn("Could not close DBaseFileReader", ex);
+		}
+		openReaders.remove(this);
+	}
+}
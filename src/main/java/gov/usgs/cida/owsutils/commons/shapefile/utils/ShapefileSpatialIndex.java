@@ -0,0 +1,442 @@
+package gov.usgs.cida.owsutils.commons.shapefile.utils;
+
+import com.vividsolutions.jts.geom.Envelope;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.UUID;
+import org.apache.commons.io.FilenameUtils;
+import org.geotools.data.shapefile.shp.ShapeType;
+import org.geotools.data.shapefile.shp.ShapefileReader.Record;
+
+/**
+ * A Sort-Tile-Recursive packed R-tree over the bounding boxes of the records
+ * of a shapefile, built in a single pass over the .shp. The tree is persisted
+ * next to the shapefile and is only valid as long as the .shp keeps the size
+ * and modification time it was built from.
+ *
+ * Nodes are kept level by level in flat arrays, leaves first and the root
+ * last. A leaf references a record index, any other node a contiguous range
+ * of children in the level below.
+ *
+ * @see IterableShapefileReader#getSpatialIndex()
+ */
+public class ShapefileSpatialIndex {
+
+	public static final String FILE_EXTENSION = "strtree";
+	private static final int MAGIC = 0x53545254;	// "STRT"
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 4 + 4 + 8 + 8 + 4 + 4 + 4;
+	private static final int NODE_BYTES = 4 * 8 + 4 + 4;
+	static final int NODE_CAPACITY = 16;
+
+	private final long shpLastModified;
+	private final long shpLength;
+	private final int recordCount;
+	private final int height;
+	private final double[] minX;
+	private final double[] minY;
+	private final double[] maxX;
+	private final double[] maxY;
+	private final int[] first;						// record index of a leaf, first child of a node
+	private final int[] count;						// 0 for a leaf, number of children of a node
+
+	private ShapefileSpatialIndex(long shpLastModified, long shpLength, int recordCount, int height, double[] minX, double[] minY, double[] maxX, double[] maxY, int[] first, int[] count) {
+		this.shpLastModified = shpLastModified;
+		this.shpLength = shpLength;
+		this.recordCount = recordCount;
+		this.height = height;
+		this.minX = minX;
+		this.minY = minY;
+		this.maxX = maxX;
+		this.maxY = maxY;
+		this.first = first;
+		this.count = count;
+	}
+
+	/**
+	 * @param shp
+	 * @return the file the index of a .shp is persisted to
+	 */
+	public static File getIndexFile(File shp) {
+		return new File(shp.getParentFile(), FilenameUtils.getBaseName(shp.getName()) + "." + FILE_EXTENSION);
+	}
+
+	/**
+	 * @return number of records in the shapefile when the index was built
+	 */
+	public int getRecordCount() {
+		return recordCount;
+	}
+
+	/**
+	 * @param shp
+	 * @return true if the .shp has not changed since the index was built
+	 */
+	public boolean isCurrent(File shp) {
+		return shp.lastModified() == shpLastModified && shp.length() == shpLength;
+	}
+
+	/**
+	 * Finds the records whose bounding box intersects an envelope
+	 *
+	 * @param envelope
+	 * @return record indexes, in ascending order
+	 */
+	public int[] query(Envelope envelope) {
+		if (first.length == 0 || envelope.isNull()) {
+			return new int[0];
+		}
+
+		int[] matches = new int[NODE_CAPACITY];
+		int matchCount = 0;
+		int[] stack = new int[height * NODE_CAPACITY + 1];
+		int stackSize = 0;
+		stack[stackSize++] = first.length - 1;
+		while (stackSize > 0) {
+			int node = stack[--stackSize];
+			if (minX[node] > envelope.getMaxX() || maxX[node] < envelope.getMinX()
+					|| minY[node] > envelope.getMaxY() || maxY[node] < envelope.getMinY()) {
+				continue;
+			}
+			if (count[node] == 0) {
+				if (matchCount == matches.length) {
+					matches = Arrays.copyOf(matches, matches.length * 2);
+				}
+				matches[matchCount++] = first[node];
+			} else {
+				for (int child = first[node]; child < first[node] + count[node]; child++) {
+					stack[stackSize++] = child;
+				}
+			}
+		}
+
+		matches = Arrays.copyOf(matches, matchCount);
+		Arrays.sort(matches);
+		return matches;
+	}
+
+	/**
+	 * Finds the record whose bounding box is closest to a point. For point
+	 * shapefiles this is the closest record.
+	 *
+	 * @param x
+	 * @param y
+	 * @return record index, -1 if the shapefile has no records
+	 */
+	public int nearest(double x, double y) {
+		if (first.length == 0) {
+			return -1;
+		}
+
+		PriorityQueue<Candidate> queue = new PriorityQueue<>();
+		int root = first.length - 1;
+		queue.add(new Candidate(root, distanceSq(root, x, y)));
+		while (!queue.isEmpty()) {
+			Candidate candidate = queue.poll();
+			int node = candidate.node;
+			if (count[node] == 0) {
+				return first[node];
+			}
+			for (int child = first[node]; child < first[node] + count[node]; child++) {
+				queue.add(new Candidate(child, distanceSq(child, x, y)));
+			}
+		}
+		return -1;
+	}
+
+	private double distanceSq(int node, double x, double y) {
+		double dx = Math.max(Math.max(minX[node] - x, x - maxX[node]), 0);
+		double dy = Math.max(Math.max(minY[node] - y, y - maxY[node]), 0);
+		return dx * dx + dy * dy;
+	}
+
+	private static class Candidate implements Comparable<Candidate> {
+
+		private final int node;
+		private final double distance;
+
+		Candidate(int node, double distance) {
+			this.node = node;
+			this.distance = distance;
+		}
+
+		@Override
+		public int compareTo(Candidate other) {
+			return Double.compare(distance, other.distance);
+		}
+	}
+
+	/**
+	 * Builds the index from the bounding boxes stored in the .shp record
+	 * headers. Geometries are not decoded and dbf rows are not read. Every
+	 * record is indexed, so the bounding box filter of the reader is cleared.
+	 *
+	 * @param reader a reader positioned in front of the first record
+	 * @param shp the .shp being read. Null value allowed when the shapefile is
+	 * not a local file
+	 * @return
+	 * @throws IOException
+	 */
+	static ShapefileSpatialIndex build(ShapefileRecordReader reader, File shp) throws IOException {
+		long lastModified = shp == null ? 0 : shp.lastModified();
+		long length = shp == null ? 0 : shp.length();
+
+		// A filter would skip records and shift the record index of every leaf
+		reader.setBBoxFilter(null);
+		Level leaves = new Level(1024);
+		int recordCount = 0;
+		while (reader.hasNext()) {
+			Record rec = reader.nextShapeRecord();
+			if (rec.type != ShapeType.NULL) {
+				leaves.add(rec.minX, rec.minY, rec.maxX, rec.maxY, recordCount, 0);
+			}
+			recordCount++;
+		}
+		return pack(leaves, recordCount, lastModified, length);
+	}
+
+	/**
+	 * Builds the index from record bounding boxes held in memory
+	 *
+	 * @param recordEnvelopes bounding box of every record, null for records
+	 * without a shape
+	 * @param shpLastModified
+	 * @param shpLength
+	 * @return
+	 */
+	static ShapefileSpatialIndex build(Envelope[] recordEnvelopes, long shpLastModified, long shpLength) {
+		Level leaves = new Level(Math.max(recordEnvelopes.length, 1));
+		for (int rIdx = 0; rIdx < recordEnvelopes.length; rIdx++) {
+			Envelope envelope = recordEnvelopes[rIdx];
+			if (envelope != null) {
+				leaves.add(envelope.getMinX(), envelope.getMinY(), envelope.getMaxX(), envelope.getMaxY(), rIdx, 0);
+			}
+		}
+		return pack(leaves, recordEnvelopes.length, shpLastModified, shpLength);
+	}
+
+	private static ShapefileSpatialIndex pack(Level leaves, int recordCount, long shpLastModified, long shpLength) {
+		List<Level> levels = new ArrayList<>();
+		if (leaves.size > 0) {
+			Level level = leaves.sortTileRecursive();
+			levels.add(level);
+			while (level.size > 1) {
+				Level parent = new Level((level.size + NODE_CAPACITY - 1) / NODE_CAPACITY);
+				for (int start = 0; start < level.size; start += NODE_CAPACITY) {
+					int end = Math.min(start + NODE_CAPACITY, level.size);
+					double nodeMinX = Double.POSITIVE_INFINITY;
+					double nodeMinY = Double.POSITIVE_INFINITY;
+					double nodeMaxX = Double.NEGATIVE_INFINITY;
+					double nodeMaxY = Double.NEGATIVE_INFINITY;
+					for (int child = start; child < end; child++) {
+						nodeMinX = Math.min(nodeMinX, level.minX[child]);
+						nodeMinY = Math.min(nodeMinY, level.minY[child]);
+						nodeMaxX = Math.max(nodeMaxX, level.maxX[child]);
+						nodeMaxY = Math.max(nodeMaxY, level.maxY[child]);
+					}
+					parent.add(nodeMinX, nodeMinY, nodeMaxX, nodeMaxY, start, end - start);
+				}
+				level = parent.sortTileRecursive();
+				levels.add(level);
+			}
+		}
+
+		int nodeCount = 0;
+		for (Level level : levels) {
+			nodeCount += level.size;
+		}
+		double[] minX = new double[nodeCount];
+		double[] minY = new double[nodeCount];
+		double[] maxX = new double[nodeCount];
+		double[] maxY = new double[nodeCount];
+		int[] first = new int[nodeCount];
+		int[] count = new int[nodeCount];
+		int base = 0;
+		int childBase = 0;
+		for (Level level : levels) {
+			System.arraycopy(level.minX, 0, minX, base, level.size);
+			System.arraycopy(level.minY, 0, minY, base, level.size);
+			System.arraycopy(level.maxX, 0, maxX, base, level.size);
+			System.arraycopy(level.maxY, 0, maxY, base, level.size);
+			System.arraycopy(level.count, 0, count, base, level.size);
+			for (int nIdx = 0; nIdx < level.size; nIdx++) {
+				// Children are numbered within their level until here
+				first[base + nIdx] = level.count[nIdx] == 0 ? level.first[nIdx] : childBase + level.first[nIdx];
+			}
+			childBase = base;
+			base += level.size;
+		}
+
+		return new ShapefileSpatialIndex(shpLastModified, shpLength, recordCount, levels.size(), minX, minY, maxX, maxY, first, count);
+	}
+
+	/**
+	 * One level of the tree while it is being built
+	 */
+	private static class Level {
+
+		private double[] minX;
+		private double[] minY;
+		private double[] maxX;
+		private double[] maxY;
+		private int[] first;
+		private int[] count;
+		private int size = 0;
+
+		Level(int capacity) {
+			minX = new double[capacity];
+			minY = new double[capacity];
+			maxX = new double[capacity];
+			maxY = new double[capacity];
+			first = new int[capacity];
+			count = new int[capacity];
+		}
+
+		void add(double nodeMinX, double nodeMinY, double nodeMaxX, double nodeMaxY, int nodeFirst, int nodeCount) {
+			if (size == first.length) {
+				int capacity = size * 2;
+				minX = Arrays.copyOf(minX, capacity);
+				minY = Arrays.copyOf(minY, capacity);
+				maxX = Arrays.copyOf(maxX, capacity);
+				maxY = Arrays.copyOf(maxY, capacity);
+				first = Arrays.copyOf(first, capacity);
+				count = Arrays.copyOf(count, capacity);
+			}
+			minX[size] = nodeMinX;
+			minY[size] = nodeMinY;
+			maxX[size] = nodeMaxX;
+			maxY[size] = nodeMaxY;
+			first[size] = nodeFirst;
+			count[size] = nodeCount;
+			size++;
+		}
+
+		/**
+		 * Sorts the nodes by the x of their center, then cuts them into
+		 * vertical slices and sorts each slice by the y of their center, so
+		 * that consecutive runs of NODE_CAPACITY nodes are close together.
+		 *
+		 * @return the nodes of this level in STR order
+		 */
+		Level sortTileRecursive() {
+			Integer[] order = new Integer[size];
+			for (int nIdx = 0; nIdx < size; nIdx++) {
+				order[nIdx] = nIdx;
+			}
+			Arrays.sort(order, Comparator.comparingDouble((Integer nIdx) -> minX[nIdx] + maxX[nIdx]));
+
+			int parentCount = (size + NODE_CAPACITY - 1) / NODE_CAPACITY;
+			int sliceSize = (int) Math.ceil(Math.sqrt(parentCount)) * NODE_CAPACITY;
+			for (int start = 0; start < size; start += sliceSize) {
+				Arrays.sort(order, start, Math.min(start + sliceSize, size), Comparator.comparingDouble((Integer nIdx) -> minY[nIdx] + maxY[nIdx]));
+			}
+
+			Level sorted = new Level(Math.max(size, 1));
+			for (Integer nIdx : order) {
+				sorted.add(minX[nIdx], minY[nIdx], maxX[nIdx], maxY[nIdx], first[nIdx], count[nIdx]);
+			}
+			return sorted;
+		}
+	}
+
+	/**
+	 * Reads an index persisted with
+	 * {@link ShapefileSpatialIndex#write(java.io.File)}
+	 *
+	 * @param indexFile
+	 * @return
+	 * @throws IOException if the file is not a spatial index of this version,
+	 * or is truncated or corrupt
+	 */
+	public static ShapefileSpatialIndex read(File indexFile) throws IOException {
+		long fileLength = indexFile.length();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException(indexFile.getName() + " is not a shapefile spatial index of version " + VERSION);
+			}
+			long shpLastModified = in.readLong();
+			long shpLength = in.readLong();
+			int recordCount = in.readInt();
+			int height = in.readInt();
+			int nodeCount = in.readInt();
+			// Checked before allocating, so a corrupt file fails with an IOException
+			if (recordCount < 0 || nodeCount < 0 || height < 0 || height > nodeCount || (height == 0) != (nodeCount == 0)
+					|| fileLength != HEADER_BYTES + (long) nodeCount * NODE_BYTES) {
+				throw new IOException(indexFile.getName() + " is truncated or corrupt");
+			}
+			double[] minX = new double[nodeCount];
+			double[] minY = new double[nodeCount];
+			double[] maxX = new double[nodeCount];
+			double[] maxY = new double[nodeCount];
+			int[] first = new int[nodeCount];
+			int[] count = new int[nodeCount];
+			for (int nIdx = 0; nIdx < nodeCount; nIdx++) {
+				minX[nIdx] = in.readDouble();
+				minY[nIdx] = in.readDouble();
+				maxX[nIdx] = in.readDouble();
+				maxY[nIdx] = in.readDouble();
+				first[nIdx] = in.readInt();
+				count[nIdx] = in.readInt();
+				// Leaves reference a record, other nodes children stored before them
+				boolean valid = count[nIdx] == 0
+						? first[nIdx] >= 0 && first[nIdx] < recordCount
+						: count[nIdx] > 0 && count[nIdx] <= NODE_CAPACITY && first[nIdx] >= 0 && first[nIdx] <= nIdx - count[nIdx];
+				if (!valid) {
+					throw new IOException(indexFile.getName() + " is truncated or corrupt");
+				}
+			}
+			return new ShapefileSpatialIndex(shpLastModified, shpLength, recordCount, height, minX, minY, maxX, maxY, first, count);
+		}
+	}
+
+	/**
+	 * Persists the index. The file is written next to its final location and
+	 * moved in place, so readers never see a partial index.
+	 *
+	 * @param indexFile
+	 * @throws IOException
+	 */
+	public void write(File indexFile) throws IOException {
+		File tempFile = new File(indexFile.getAbsoluteFile().getParentFile(), "." + indexFile.getName() + "." + UUID.randomUUID().toString() + "-deleteme");
+		try {
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeLong(shpLastModified);
+				out.writeLong(shpLength);
+				out.writeInt(recordCount);
+				out.writeInt(height);
+				out.writeInt(first.length);
+				for (int nIdx = 0; nIdx < first.length; nIdx++) {
+					out.writeDouble(minX[nIdx]);
+					out.writeDouble(minY[nIdx]);
+					out.writeDouble(maxX[nIdx]);
+					out.writeDouble(maxY[nIdx]);
+					out.writeInt(first[nIdx]);
+					out.writeInt(count[nIdx]);
+				}
+			}
+			try {
+				Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException ex) {
+				Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(tempFile.toPath());
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package gov.usgs.cida.owsutils.commons.shapefile.utils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Splits the records of a shapefile into ranges using the record offsets in
+ * the .shx index. Every range is read through its own ShapefileReader and
+ * DbaseFileReader, positioned by byte offset in the .shp and by fixed row
+ * width in the .dbf, so ranges can be consumed on separate threads.
+ *
+ * As with {@link IterableShapefileReader#next()}, the shape and row of a
+ * ShapeAndAttributes are decoded lazily from the reader buffers, so they
+ * should be used within the action they are handed to rather than collected.
+ *
+ * Records outside the bounding box filter of the IterableShapefileReader, if
+ * any, are skipped.
+ *
+ * @see IterableShapefileReader#spliterator()
+ */
+public class ShapefileSpliterator implements Spliterator<ShapeAndAttributes>, AutoCloseable {
+
+	// Ranges smaller than this are not worth a reader pair of their own
+	private static final int MINIMUM_SPLIT_SIZE = 256;
+
+	private final IterableShapefileReader source;
+	private final int[] offsets;
+	private int index;
+	private final int fence;
+	private final boolean filtered;
+	private ShapefileRecordReader reader;
+
+	ShapefileSpliterator(IterableShapefileReader source) {
+		this.source = source;
+		this.offsets = source.getRecordOffsets();
+		this.index = 0;
+		this.fence = offsets.length;
+		this.filtered = source.getBBoxFilter() != null;
+	}
+
+	private ShapefileSpliterator(ShapefileSpliterator parent, int index, int fence) {
+		this.source = parent.source;
+		this.offsets = parent.offsets;
+		this.index = index;
+		this.fence = fence;
+		this.filtered = parent.filtered;
+	}
+
+	@Override
+	public boolean tryAdvance(Consumer<? super ShapeAndAttributes> action) {
+		if (index >= fence) {
+			return false;
+		}
+
+		ShapeAndAttributes next;
+		try {
+			if (reader == null) {
+				reader = source.openRecordReader(false);
+				reader.goTo(index, offsets[index]);
+			}
+			if (!reader.advance(fence)) {
+				index = fence;
+				close();
+				return false;
+			}
+			next = reader.next();
+		} catch (IOException e) {
+			close();
+			throw new UncheckedIOException(e);
+		}
+
+		index = reader.getRecordIndex();
+		try {
+			action.accept(next);
+		} finally {
+			if (index >= fence) {
+				close();
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public Spliterator<ShapeAndAttributes> trySplit() {
+		// Once reading started this range is tied to its readers' position
+		if (reader != null || fence - index < MINIMUM_SPLIT_SIZE * 2) {
+			return null;
+		}
+		int mid = (index + fence) >>> 1;
+		ShapefileSpliterator prefix = new ShapefileSpliterator(this, index, mid);
+		index = mid;
+		return prefix;
+	}
+
+	@Override
+	public long estimateSize() {
+		return fence - index;
+	}
+
+	@Override
+	public int characteristics() {
+		// With a bounding box filter the size is only an upper bound
+		return filtered ? ORDERED | NONNULL | IMMUTABLE : ORDERED | SIZED | SUBSIZED | NONNULL | IMMUTABLE;
+	}
+
+	/**
+	 * Releases the readers of this range. Ranges release their readers on
+	 * their own once they have been fully consumed, or when the
+	 * IterableShapefileReader they came from is closed.
+	 */
+	@Override
+	public void close() {
+		if (reader != null) {
+			reader.close();
+		}
+	}
+}
@@ -0,0 +1,45 @@
+package gov.usgs.cida.owsutils.commons.shapefile.utils;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.feature.collection.DecoratingSimpleFeatureCollection;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A feature collection which keeps the DataStore it reads from open until the
+ * collection is closed. Features are read lazily from the store, so the
+ * collection must not be closed while it is still being read.
+ *
+ * @see FeatureCollectionFromShp#getFeatureCollectionFromShp(java.net.URL)
+ */
+public class StoreBackedFeatureCollection extends DecoratingSimpleFeatureCollection implements AutoCloseable {
+
+	private static final org.slf4j.Logger LOGGER = LoggerFactory.getLogger(StoreBackedFeatureCollection.class);
+	private final AutoCloseable store;
+	private final AtomicBoolean closed = new AtomicBoolean(false);
+
+	/**
+	 *
+	 * @param delegate
+	 * @param store releases the DataStore behind the collection
+	 */
+	StoreBackedFeatureCollection(SimpleFeatureCollection delegate, AutoCloseable store) {
+		super(delegate);
+		this.store = store;
+	}
+
+	/**
+	 * Releases the DataStore behind this collection. Closing more than once
+	 * has no further effect.
+	 */
+	@Override
+	public void close() {
+		if (closed.compareAndSet(false, true)) {
+			try {
+				store.close();
+			} catch (Exception ex) {
+				LOGGER.warn("Could not release DataStore", ex);
+			}
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package gov.usgs.cida.owsutils.commons.shapefile.utils;
+
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.Point;
+
+/**
+ * Walks the vertices of a line or point geometry, exposing the ordinates of
+ * the current vertex as primitives. Unlike {@link PointIterator} no object is
+ * created per vertex, and one cursor may be reused for many geometries through
+ * {@link VertexCursor#reset(com.vividsolutions.jts.geom.Geometry)}.
+ *
+ * <pre>
+ * VertexCursor cursor = shapeAndAttributes.vertexCursor();
+ * while (cursor.next()) {
+ *     double m = cursor.getM();
+ * }
+ * </pre>
+ */
+public class VertexCursor {
+
+	private Geometry shape;
+	private int numParts;
+	private int partIdx;
+	private CoordinateSequence part;
+	private boolean partHasM;
+	private int vertexIdx;
+
+	public VertexCursor(Geometry shape) {
+		reset(shape);
+	}
+
+	/**
+	 * Points the cursor before the first vertex of a geometry
+	 *
+	 * @param shape a Point, LineString or collection of those
+	 */
+	public final void reset(Geometry shape) {
+		this.shape = shape;
+		this.numParts = shape == null ? 0 : shape.getNumGeometries();
+		this.partIdx = -1;
+		this.part = null;
+		this.vertexIdx = -1;
+	}
+
+	/**
+	 * Moves to the next vertex
+	 *
+	 * @return false once all vertices have been visited
+	 */
+	public boolean next() {
+		vertexIdx++;
+		while (part == null || vertexIdx >= part.size()) {
+			if (++partIdx >= numParts) {
+				part = null;
+				return false;
+			}
+			part = getSequence(shape.getGeometryN(partIdx));
+			partHasM = part.getDimension() > CoordinateSequence.M;
+			vertexIdx = 0;
+		}
+		return true;
+	}
+
+	private static CoordinateSequence getSequence(Geometry geometry) {
+		if (geometry instanceof LineString) {
+			return ((LineString) geometry).getCoordinateSequence();
+		} else if (geometry instanceof Point) {
+			return ((Point) geometry).getCoordinateSequence();
+		}
+		throw new ClassCastException("Can't handle this type");
+	}
+
+	public double getX() {
+		return part.getX(vertexIdx);
+	}
+
+	public double getY() {
+		return part.getY(vertexIdx);
+	}
+
+	/**
+	 * @return Z of the current vertex, NaN if not present
+	 */
+	public double getZ() {
+		return part.getOrdinate(vertexIdx, CoordinateSequence.Z);
+	}
+
+	/**
+	 * @return M of the current vertex, NaN if not present
+	 */
+	public double getM() {
+		return partHasM ? part.getOrdinate(vertexIdx, CoordinateSequence.M) : Double.NaN;
+	}
+
+	/**
+	 * @return index of the part (line) the current vertex belongs to
+	 */
+	public int getPartIndex() {
+		return partIdx;
+	}
+
+	/**
+	 * @return index of the current vertex within its part
+	 */
+	public int getVertexIndex() {
+		return vertexIdx;
+	}
+}
@@ -0,0 +1,476 @@
+package gov.usgs.cida.owsutils.commons.communication;
+
+import com.google.gson.Gson;
+import com.jamesmurty.utils.XMLBuilder;
+import gov.usgs.cida.owsutils.commons.io.ResumableUpload;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.GZIPInputStream;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.commons.io.IOUtils;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RequestResponseTest {
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	/**
+	 * Records what is sent through a HttpServletResponse
+	 */
+	private static class RecordedResponse {
+
+		private final Map<String, String> headers = new HashMap<>();
+		private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		private final HttpServletResponse response;
+
+		RecordedResponse() {
+			this(Long.MAX_VALUE);
+		}
+
+		/**
+		 * @param failAfter amount of bytes the client takes before the
+		 * connection drops
+		 */
+		RecordedResponse(final long failAfter) {
+			final ServletOutputStream out = new ServletOutputStream() {
+				@Override
+				public void write(int b) throws IOException {
+					if (body.size() >= failAfter) {
+						throw new IOException("Connection reset");
+					}
+					body.write(b);
+				}
+
+				@Override
+				public boolean isReady() {
+					return true;
+				}
+
+				@Override
+				public void setWriteListener(WriteListener writeListener) {
+				}
+			};
+			response = (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{HttpServletResponse.class}, (proxy, method, args) -> {
+				switch (method.getName()) {
+					case "setHeader":
+					case "addHeader":
+						headers.put((String) args[0], (String) args[1]);
+						return null;
+					case "setContentType":
+						headers.put("Content-Type", (String) args[0]);
+						return null;
+					case "getOutputStream":
+						return out;
+					default:
+						return null;
+				}
+			});
+		}
+
+		String getBody() {
+			return new String(body.toByteArray(), StandardCharsets.UTF_8);
+		}
+	}
+
+	private static HttpServletRequest requestAccepting(final String acceptEncoding) {
+		return (HttpServletRequest) Proxy.newProxyInstance(RequestResponseTest.class.getClassLoader(), new Class<?>[]{HttpServletRequest.class}, (proxy, method, args) -> {
+			if ("getHeader".equals(method.getName()) && "Accept-Encoding".equalsIgnoreCase((String) args[0])) {
+				return acceptEncoding;
+			}
+			return null;
+		});
+	}
+
+	/**
+	 * A request whose body arrives in chunks, handed to the ReadListener one
+	 * at a time by {@link #deliver(byte[])}
+	 */
+	private static class ChunkedRequest {
+
+		private final HttpServletRequest request;
+		private ReadListener listener;
+		private ByteArrayInputStream chunk = new ByteArrayInputStream(new byte[0]);
+		private boolean finished = false;
+		private boolean asyncStarted = false;
+		private AsyncListener asyncListener;
+		private long asyncTimeout = -1;
+
+		ChunkedRequest() {
+			final ServletInputStream in = new ServletInputStream() {
+				@Override
+				public int read() throws IOException {
+					return chunk.read();
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					return chunk.read(b, off, len);
+				}
+
+				@Override
+				public boolean isReady() {
+					return chunk.available() > 0;
+				}
+
+				@Override
+				public boolean isFinished() {
+					return finished;
+				}
+
+				@Override
+				public void setReadListener(ReadListener readListener) {
+					listener = readListener;
+				}
+			};
+			final AsyncContext asyncContext = (AsyncContext) Proxy.newProxyInstance(RequestResponseTest.class.getClassLoader(), new Class<?>[]{AsyncContext.class}, (proxy, method, args) -> {
+				switch (method.getName()) {
+					case "addListener":
+						asyncListener = (AsyncListener) args[0];
+						return null;
+					case "setTimeout":
+						asyncTimeout = (Long) args[0];
+						return null;
+					default:
+						return null;
+				}
+			});
+			request = (HttpServletRequest) Proxy.newProxyInstance(RequestResponseTest.class.getClassLoader(), new Class<?>[]{HttpServletRequest.class}, (proxy, method, args) -> {
+				switch (method.getName()) {
+					case "getMethod":
+						return "POST";
+					case "getContentType":
+						return "application/octet-stream";
+					case "getInputStream":
+						return in;
+					case "isAsyncStarted":
+						return asyncStarted;
+					case "startAsync":
+						asyncStarted = true;
+						return asyncContext;
+					default:
+						return null;
+				}
+			});
+		}
+
+		void deliver(byte[] data) throws IOException {
+			chunk = new ByteArrayInputStream(data);
+			listener.onDataAvailable();
+		}
+
+		void finish() throws IOException {
+			finished = true;
+			listener.onAllDataRead();
+		}
+	}
+
+	private static Map<String, String> largeResponseMap() {
+		Map<String, String> responseMap = new LinkedHashMap<>();
+		for (int i = 0; i < 500; i++) {
+			responseMap.put("key" + i, "évalue" + i);
+		}
+		return responseMap;
+	}
+
+	private static String gunzip(byte[] body) throws IOException {
+		try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(body))) {
+			return IOUtils.toString(in, StandardCharsets.UTF_8);
+		}
+	}
+
+	@After
+	public void tearDown() {
+		RequestResponse.setMaximumBufferedResponseSize(RequestResponse.DEFAULT_MAXIMUM_BUFFERED_RESPONSE_SIZE);
+		RequestResponse.setCompressionThreshold(RequestResponse.DEFAULT_COMPRESSION_THRESHOLD);
+	}
+
+	@Test
+	public void testJSONResponseContentLengthCountsBytes() {
+		System.out.println("testJSONResponseContentLengthCountsBytes");
+		Map<String, String> responseMap = new LinkedHashMap<>();
+		responseMap.put("name", "Kauaʻi – été");
+		RecordedResponse recorded = new RecordedResponse();
+		RequestResponse.sendSuccessResponse(recorded.response, responseMap, RequestResponse.ResponseType.JSON);
+
+		assertEquals(new Gson().toJson(responseMap), recorded.getBody());
+		assertEquals(Integer.toString(recorded.body.size()), recorded.headers.get("Content-Length"));
+		assertEquals("application/json", recorded.headers.get("Content-Type"));
+	}
+
+	@Test
+	public void testXMLResponseLayout() throws Exception {
+		System.out.println("testXMLResponseLayout");
+		Map<String, String> responseMap = new LinkedHashMap<>();
+		responseMap.put("message", "a <b> & \"c\" 'd' > été");
+		responseMap.put("empty", "");
+		responseMap.put("serverCode", "200");
+		RecordedResponse recorded = new RecordedResponse();
+		RequestResponse.sendSuccessResponse(recorded.response, responseMap, RequestResponse.ResponseType.XML);
+
+		XMLBuilder expected = XMLBuilder.create("Response");
+		for (Map.Entry<String, String> entry : responseMap.entrySet()) {
+			expected.element(entry.getKey()).text(entry.getValue());
+		}
+		assertEquals(expected.asString(), recorded.getBody());
+		assertEquals(Integer.toString(recorded.body.size()), recorded.headers.get("Content-Length"));
+		assertEquals("application/xml", recorded.headers.get("Content-Type"));
+	}
+
+	@Test
+	public void testLargeJSONResponseIsStreamed() {
+		System.out.println("testLargeJSONResponseIsStreamed");
+		RequestResponse.setMaximumBufferedResponseSize(64);
+		Map<String, String> responseMap = new LinkedHashMap<>();
+		for (int i = 0; i < 100; i++) {
+			responseMap.put("key" + i, "évalue" + i);
+		}
+		RecordedResponse recorded = new RecordedResponse();
+		RequestResponse.sendSuccessResponse(recorded.response, responseMap, RequestResponse.ResponseType.JSON);
+
+		assertEquals(new Gson().toJson(responseMap), recorded.getBody());
+		assertNull(recorded.headers.get("Content-Length"));
+	}
+
+	@Test
+	public void testLargeJSONResponseIsCompressed() throws Exception {
+		System.out.println("testLargeJSONResponseIsCompressed");
+		Map<String, String> responseMap = largeResponseMap();
+		RecordedResponse recorded = new RecordedResponse();
+		RequestResponse.sendSuccessResponse(requestAccepting("deflate, gzip;q=0.8"), recorded.response, responseMap, RequestResponse.ResponseType.JSON);
+
+		assertEquals("gzip", recorded.headers.get("Content-Encoding"));
+		assertEquals("Accept-Encoding", recorded.headers.get("Vary"));
+		assertEquals(Integer.toString(recorded.body.size()), recorded.headers.get("Content-Length"));
+		assertEquals(new Gson().toJson(responseMap), gunzip(recorded.body.toByteArray()));
+	}
+
+	@Test
+	public void testStreamedJSONResponseIsCompressed() throws Exception {
+		System.out.println("testStreamedJSONResponseIsCompressed");
+		RequestResponse.setMaximumBufferedResponseSize(64);
+		Map<String, String> responseMap = largeResponseMap();
+		RecordedResponse recorded = new RecordedResponse();
+		RequestResponse.sendSuccessResponse(requestAccepting("gzip"), recorded.response, responseMap, RequestResponse.ResponseType.JSON);
+
+		assertEquals("gzip", recorded.headers.get("Content-Encoding"));
+		assertNull(recorded.headers.get("Content-Length"));
+		assertEquals(new Gson().toJson(responseMap), gunzip(recorded.body.toByteArray()));
+	}
+
+	@Test
+	public void testFailedCompressedResponseReleasesDeflater() throws Exception {
+		System.out.println("testFailedCompressedResponseReleasesDeflater");
+		RequestResponse.setMaximumBufferedResponseSize(64);
+		// Random values compress poorly, so compressed bytes go out while the body is written
+		Random random = new Random(42);
+		Map<String, String> responseMap = new LinkedHashMap<>();
+		for (int i = 0; i < 5000; i++) {
+			responseMap.put("key" + i, Long.toHexString(random.nextLong()));
+		}
+		RequestResponse.sendSuccessResponse(requestAccepting("gzip"), new RecordedResponse().response, responseMap, RequestResponse.ResponseType.JSON);
+		int pooled = RequestResponse.getPooledDeflaterCount();
+		assertTrue(pooled > 0);
+
+		for (RequestResponse.ResponseType type : RequestResponse.ResponseType.values()) {
+			RecordedResponse failed = new RecordedResponse(1024);
+			RequestResponse.sendSuccessResponse(requestAccepting("gzip"), failed.response, responseMap, type);
+			assertEquals("gzip", failed.headers.get("Content-Encoding"));
+			assertEquals(1024, failed.body.size());
+			assertEquals(pooled, RequestResponse.getPooledDeflaterCount());
+		}
+
+		// Writers such as OutputStreamWriter never close a stream whose last write failed
+		byte[] chunk = new byte[4096];
+		RecordedResponse dropped = new RecordedResponse(1024);
+		OutputStream out = new RequestResponse.ResponseBodyOutputStream(requestAccepting("gzip"), dropped.response);
+		try {
+			for (int i = 0; i < 100; i++) {
+				random.nextBytes(chunk);
+				out.write(chunk);
+			}
+			fail("Writing to a dropped connection should fail");
+		} catch (IOException ex) {
+			assertEquals(pooled, RequestResponse.getPooledDeflaterCount());
+		}
+		try {
+			out.write(chunk);
+			fail("Writing after a failed write should fail");
+		} catch (IOException ex) {
+			assertEquals(1024, dropped.body.size());
+		}
+
+		RecordedResponse recorded = new RecordedResponse();
+		RequestResponse.sendSuccessResponse(requestAccepting("gzip"), recorded.response, responseMap, RequestResponse.ResponseType.JSON);
+		assertEquals(new Gson().toJson(responseMap), gunzip(recorded.body.toByteArray()));
+		assertEquals(pooled, RequestResponse.getPooledDeflaterCount());
+	}
+
+	@Test
+	public void testSmallResponseIsNotCompressed() {
+		System.out.println("testSmallResponseIsNotCompressed");
+		Map<String, String> responseMap = new LinkedHashMap<>();
+		responseMap.put("name", "value");
+		RecordedResponse recorded = new RecordedResponse();
+		RequestResponse.sendSuccessResponse(requestAccepting("gzip"), recorded.response, responseMap, RequestResponse.ResponseType.XML);
+
+		assertNull(recorded.headers.get("Content-Encoding"));
+		assertEquals("Accept-Encoding", recorded.headers.get("Vary"));
+		assertEquals(Integer.toString(recorded.body.size()), recorded.headers.get("Content-Length"));
+	}
+
+	@Test
+	public void testResponseIsNotCompressedWithoutAcceptEncoding() {
+		System.out.println("testResponseIsNotCompressedWithoutAcceptEncoding");
+		Map<String, String> responseMap = largeResponseMap();
+		RecordedResponse recorded = new RecordedResponse();
+		RequestResponse.sendSuccessResponse(requestAccepting(null), recorded.response, responseMap, RequestResponse.ResponseType.JSON);
+
+		assertNull(recorded.headers.get("Content-Encoding"));
+		assertEquals(new Gson().toJson(responseMap), recorded.getBody());
+	}
+
+	@Test
+	public void testAcceptsGzip() {
+		System.out.println("testAcceptsGzip");
+		assertTrue(RequestResponse.acceptsGzip("gzip, deflate"));
+		assertTrue(RequestResponse.acceptsGzip("*"));
+		assertTrue(RequestResponse.acceptsGzip("identity, GZIP;q=0.5"));
+		assertFalse(RequestResponse.acceptsGzip("gzip;q=0"));
+		assertFalse(RequestResponse.acceptsGzip("*, gzip;q=0.0"));
+		assertFalse(RequestResponse.acceptsGzip("deflate, br"));
+		assertFalse(RequestResponse.acceptsGzip(null));
+	}
+
+	@Test
+	public void testSaveFileFromRequestAsync() throws Exception {
+		System.out.println("testSaveFileFromRequestAsync");
+		File destination = temporaryFolder.newFile("upload.zip");
+		ChunkedRequest chunked = new ChunkedRequest();
+		CompletableFuture<File> future = RequestResponse.saveFileFromRequestAsync(chunked.request, destination, "qqfile");
+
+		assertTrue(chunked.asyncStarted);
+		assertEquals(0, chunked.asyncTimeout);
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		for (int i = 0; i < 5; i++) {
+			byte[] data = new byte[10000 + i];
+			Arrays.fill(data, (byte) i);
+			expected.write(data);
+			chunked.deliver(data);
+			assertFalse(future.isDone());
+		}
+		chunked.finish();
+
+		assertEquals(destination, future.get());
+		assertArrayEquals(expected.toByteArray(), Files.readAllBytes(destination.toPath()));
+	}
+
+	@Test
+	public void testSaveFileFromRequestAsyncError() throws Exception {
+		System.out.println("testSaveFileFromRequestAsyncError");
+		File destination = new File(temporaryFolder.getRoot(), "upload.zip");
+		ChunkedRequest chunked = new ChunkedRequest();
+		CompletableFuture<File> future = RequestResponse.saveFileFromRequestAsync(chunked.request, destination, "qqfile");
+
+		chunked.deliver(new byte[100]);
+		chunked.listener.onError(new IOException("Connection reset"));
+
+		assertTrue(future.isCompletedExceptionally());
+		assertFalse(destination.exists());
+	}
+
+	@Test
+	public void testSaveChunkFromRequest() throws Exception {
+		System.out.println("testSaveChunkFromRequest");
+		final byte[] data = new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9};
+		File destination = new File(temporaryFolder.getRoot(), "upload.zip");
+		try (ResumableUpload upload = ResumableUpload.open(destination, 12)) {
+			HttpServletRequest request = (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{HttpServletRequest.class}, (proxy, method, args) -> {
+				switch (method.getName()) {
+					case "getHeader":
+						return "Content-Range".equals(args[0]) ? "bytes 4-7/12" : null;
+					case "getInputStream":
+						return new ServletInputStream() {
+							private final InputStream in = new ByteArrayInputStream(data);
+
+							@Override
+							public int read() throws IOException {
+								return in.read();
+							}
+
+							@Override
+							public boolean isReady() {
+								return true;
+							}
+
+							@Override
+							public boolean isFinished() {
+								return false;
+							}
+
+							@Override
+							public void setReadListener(ReadListener readListener) {
+							}
+						};
+					default:
+						return null;
+				}
+			});
+
+			// Bytes past the announced range are not written
+			assertEquals(4, RequestResponse.saveChunkFromRequest(request, upload, "qqfile"));
+			assertEquals(2, upload.getMissingRanges().size());
+			assertEquals(8, upload.getMissingRanges().get(1).getStart());
+		}
+	}
+
+	@Test
+	public void testSaveFileFromRequestAsyncTimeout() throws Exception {
+		System.out.println("testSaveFileFromRequestAsyncTimeout");
+		File destination = new File(temporaryFolder.getRoot(), "upload.zip");
+		ChunkedRequest chunked = new ChunkedRequest();
+		CompletableFuture<File> future = RequestResponse.saveFileFromRequestAsync(chunked.request, destination, "qqfile", 60000);
+		assertEquals(60000, chunked.asyncTimeout);
+
+		chunked.deliver(new byte[100]);
+		assertTrue(destination.exists());
+		chunked.asyncListener.onTimeout(null);
+
+		assertTrue(future.isCompletedExceptionally());
+		assertFalse(destination.exists());
+		// Data arriving after the timeout is not written
+		chunked.deliver(new byte[100]);
+		chunked.finish();
+		assertTrue(future.isCompletedExceptionally());
+		assertFalse(destination.exists());
+	}
+}
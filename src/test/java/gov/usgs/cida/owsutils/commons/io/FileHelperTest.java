@@ -1,24 +1,44 @@
 package gov.usgs.cida.owsutils.commons.io;
 
 import gov.usgs.cida.owsutils.commons.io.exception.ShapefileFormatException;
+import gov.usgs.cida.owsutils.commons.io.exception.ZipLimitExceededException;
 import gov.usgs.cida.owsutils.commons.shapefile.utils.IterableShapefileReader;
 import gov.usgs.cida.owsutils.commons.shapefile.utils.ShapeAndAttributes;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.StringWriter;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.IOUtils;
 import org.junit.After;
 import org.junit.AfterClass;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -36,12 +56,14 @@ public class FileHelperTest {
 	private String zipWithSubfolderZipName = "zip_with_subfolder.zip";
 	private String zipWithDifferentlyNamedContentsZipName = "NJ_baseline_w_orient.zip";
 	private String zipWithSimilarlyNamedContentsZipName = "KauaiE_shorelines.zip";
+	private String multipleShapefilesZipName = "multiple_shapefiles.zip";
 	private File validShapefileZip = null;
 	private File validShapefileZip2dbf = null;
 	private File macZippedZip = null;
 	private File zipWithSubfolder = null;
 	private File zipWithDifferentlyNamedContents = null;
 	private File zipWithSimilarlyNamedContents = null;
+	private File multipleShapefilesZip = null;
 	private File tempArea = null;
 
 	public FileHelperTest() {
@@ -94,13 +116,32 @@ public class FileHelperTest {
 		FileUtils.copyFileToDirectory(new File(url.toURI()), tempArea);
 		zipWithSimilarlyNamedContents = new File(tempArea, zipWithSimilarlyNamedContentsZipName);
 
+		cl = Thread.currentThread().getContextClassLoader();
+		url = cl.getResource(sampleShapefileLocation + multipleShapefilesZipName);
+		FileUtils.copyFileToDirectory(new File(url.toURI()), tempArea);
+		multipleShapefilesZip = new File(tempArea, multipleShapefilesZipName);
 	}
 
 	@After
 	public void afterTest() throws Exception {
+		FileHelper.setZipLimits(ZipLimits.DEFAULT);
 		FileUtils.forceDelete(tempArea);
 	}
 
+	/**
+	 * Writes a zip holding one entry of zeros, which deflates about a
+	 * thousandfold
+	 */
+	private File createZipOfZeros(String entryName, int size) throws IOException {
+		File zip = new File(tempArea, "zeros.zip");
+		try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(zip))) {
+			zos.putNextEntry(new ZipEntry(entryName));
+			zos.write(new byte[size]);
+			zos.closeEntry();
+		}
+		return zip;
+	}
+
 	@Test
 	public void testValidateValidShapefileZip() throws Exception {
 		System.out.println("validateValidShapefileZip");
@@ -108,6 +149,117 @@ public class FileHelperTest {
 		assertTrue(true);
 	}
 	
+	@Test(expected = ShapefileFormatException.class)
+	public void testValidateMultipleShapefilesZip() throws Exception {
+		System.out.println("validateMultipleShapefilesZip");
+		FileHelper.validateShapefileZip(multipleShapefilesZip);
+	}
+
+	@Test
+	public void testCopyAndValidateShapefileZip() throws Exception {
+		System.out.println("copyAndValidateShapefileZip");
+		for (File zip : new File[]{validShapefileZip, validShapefileZip2dbf, macZippedZip, zipWithSimilarlyNamedContents}) {
+			File copy = new File(tempArea, "copy-" + zip.getName());
+			try (FileInputStream fis = new FileInputStream(zip)) {
+				FileHelper.copyAndValidateShapefileZip(fis, copy);
+			}
+			assertTrue(FileUtils.contentEquals(zip, copy));
+		}
+	}
+
+	@Test
+	public void testCopyAndValidateMultipleShapefilesZip() throws Exception {
+		System.out.println("copyAndValidateMultipleShapefilesZip");
+		File copy = new File(tempArea, "copy.zip");
+		try (FileInputStream fis = new FileInputStream(multipleShapefilesZip)) {
+			FileHelper.copyAndValidateShapefileZip(fis, copy);
+			fail("Archive with multiple shapefiles was accepted");
+		} catch (ShapefileFormatException ex) {
+			assertEquals("Shapefile archive may only contain one shapefile", ex.getMessage());
+		}
+		assertFalse(copy.exists());
+	}
+
+	@Test
+	public void testValidateShapefileZipDoesNotWriteToTemp() throws Exception {
+		System.out.println("validateShapefileZipDoesNotWriteToTemp");
+		// A temp directory that is a plain file fails any attempt to create
+		// something in it, even one cleaned up before validation returns
+		File notADirectory = new File(tempArea, "not-a-directory");
+		FileUtils.touch(notADirectory);
+		String tmpdir = System.getProperty("java.io.tmpdir");
+		System.setProperty("java.io.tmpdir", notADirectory.getPath());
+		try {
+			FileHelper.validateShapefileZip(validShapefileZip);
+			FileHelper.validateShapefileZip(validShapefileZip2dbf);
+		} finally {
+			System.setProperty("java.io.tmpdir", tmpdir);
+		}
+		assertTrue(notADirectory.isFile());
+		assertEquals(0, notADirectory.length());
+	}
+	
+	@Test
+	public void testStreamingBase64Encode() throws Exception {
+		System.out.println("testStreamingBase64Encode");
+		byte[] expected = FileHelper.base64Encode(validShapefileZip);
+
+		ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+		FileHelper.base64Encode(validShapefileZip, streamed);
+		assertArrayEquals(expected, streamed.toByteArray());
+
+		StringWriter written = new StringWriter();
+		FileHelper.base64Encode(validShapefileZip, written);
+		assertEquals(new String(expected, "US-ASCII"), written.toString());
+	}
+
+	@Test
+	public void testParallelBase64Encode() throws Exception {
+		System.out.println("testParallelBase64Encode");
+		// Large enough to be split into several segments, and not 3 byte aligned
+		byte[] content = new byte[10 * 1024 * 1024 + 1];
+		new Random(42).nextBytes(content);
+		File largeFile = new File(tempArea, "large.bin");
+		FileUtils.writeByteArrayToFile(largeFile, content);
+
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+		FileHelper.base64Encode(largeFile, encoded, 4);
+		assertArrayEquals(FileHelper.base64Encode(content), encoded.toByteArray());
+
+		// A caller's executor may have fewer threads than segments in flight,
+		// and is left running
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			encoded.reset();
+			FileHelper.base64Encode(largeFile, encoded, executor, 3);
+			assertArrayEquals(FileHelper.base64Encode(content), encoded.toByteArray());
+			assertFalse(executor.isShutdown());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testMapFile() throws Exception {
+		System.out.println("testMapFile");
+		byte[] expected = FileHelper.getByteArrayFromFile(validShapefileZip);
+
+		MappedByteBuffer[] segments = FileHelper.mapFile(validShapefileZip);
+		assertEquals(1, segments.length);
+		assertEquals(ByteBuffer.wrap(expected), segments[0]);
+
+		segments = FileHelper.mapFile(validShapefileZip, 1000);
+		assertEquals((expected.length + 999) / 1000, segments.length);
+		ByteArrayOutputStream joined = new ByteArrayOutputStream();
+		for (MappedByteBuffer segment : segments) {
+			assertTrue(segment.isReadOnly());
+			byte[] bytes = new byte[segment.remaining()];
+			segment.get(bytes);
+			joined.write(bytes);
+		}
+		assertArrayEquals(expected, joined.toByteArray());
+	}
+
 	@Test
 	public void testIzZipFile() throws IOException {
 		System.out.println("testIzZipFile");
@@ -155,6 +307,49 @@ public class FileHelperTest {
 		FileHelper.renameDirectoryContents(subDir);
 	}
 
+	@Test
+	public void testParallelUnzipMatchesSequentialUnzip() throws IOException {
+		System.out.println("testParallelUnzipMatchesSequentialUnzip");
+		File sequentialDir = new File(tempArea, "sequential");
+		File parallelDir = new File(tempArea, "parallel");
+		FileUtils.forceMkdir(sequentialDir);
+		FileUtils.forceMkdir(parallelDir);
+		for (File zip : new File[]{zipWithSubfolder, validShapefileZip2dbf}) {
+			FileHelper.unzipFile(sequentialDir.getAbsolutePath(), zip);
+			FileHelper.unzipFile(parallelDir.getAbsolutePath(), zip, 4);
+		}
+
+		List<String> sequentialFileList = FileHelper.getFileList(sequentialDir.getAbsolutePath(), false);
+		List<String> parallelFileList = FileHelper.getFileList(parallelDir.getAbsolutePath(), false);
+		assertEquals(sequentialFileList.size(), parallelFileList.size());
+		for (String fileName : sequentialFileList) {
+			assertTrue(FileUtils.contentEquals(new File(sequentialDir, fileName), new File(parallelDir, fileName)));
+		}
+	}
+
+	@Test
+	public void testParallelUnzipWithExecutor() throws IOException {
+		System.out.println("testParallelUnzipWithExecutor");
+		File sequentialDir = new File(tempArea, "sequential");
+		File parallelDir = new File(tempArea, "parallel");
+		FileUtils.forceMkdir(sequentialDir);
+		FileUtils.forceMkdir(parallelDir);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			FileHelper.unzipFile(sequentialDir.getAbsolutePath(), validShapefileZip2dbf);
+			FileHelper.unzipFile(parallelDir.getAbsolutePath(), validShapefileZip2dbf, executor, 4);
+			assertFalse(executor.isShutdown());
+		} finally {
+			executor.shutdownNow();
+		}
+
+		List<String> sequentialFileList = FileHelper.getFileList(sequentialDir.getAbsolutePath(), false);
+		assertEquals(sequentialFileList.size(), FileHelper.getFileList(parallelDir.getAbsolutePath(), false).size());
+		for (String fileName : sequentialFileList) {
+			assertTrue(FileUtils.contentEquals(new File(sequentialDir, fileName), new File(parallelDir, fileName)));
+		}
+	}
+
 	@Test
 	public void testFlattenZipWithSubfolderZip() throws Exception {
 		System.out.println("flattenZipWithSubfolderZip");
@@ -258,4 +453,194 @@ public class FileHelperTest {
 		}
 
 	}
+
+	@Test
+	public void testUnzipHighCompressionRatio() throws IOException {
+		System.out.println("testUnzipHighCompressionRatio");
+		File zip = createZipOfZeros("zeros.dbf", 4 * 1024 * 1024);
+		FileHelper.setZipLimits(new ZipLimits(ZipLimits.DEFAULT_MAXIMUM_TOTAL_BYTES, ZipLimits.DEFAULT_MAXIMUM_ENTRY_BYTES, ZipLimits.DEFAULT_MAXIMUM_ENTRY_COUNT, 200));
+		File outputDir = new File(tempArea, "out");
+		FileUtils.forceMkdir(outputDir);
+		try {
+			FileHelper.unzipFile(outputDir.getAbsolutePath(), zip);
+			fail("Expected a ZipLimitExceededException");
+		} catch (ZipLimitExceededException ex) {
+			assertFalse(new File(outputDir, "zeros.dbf").exists());
+		}
+		try {
+			FileHelper.unzipFile(outputDir.getAbsolutePath(), zip, 2);
+			fail("Expected a ZipLimitExceededException");
+		} catch (ZipLimitExceededException ex) {
+			assertFalse(new File(outputDir, "zeros.dbf").exists());
+		}
+
+		FileHelper.setZipLimits(ZipLimits.UNLIMITED);
+		FileHelper.unzipFile(outputDir.getAbsolutePath(), zip);
+		assertEquals(4 * 1024 * 1024, new File(outputDir, "zeros.dbf").length());
+	}
+
+	@Test
+	public void testParallelUnzipFailureLeavesNoPartialEntries() throws IOException {
+		System.out.println("testParallelUnzipFailureLeavesNoPartialEntries");
+		int size = 8 * 1024 * 1024;
+		File zip = new File(tempArea, "zeros.zip");
+		try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(zip))) {
+			for (String entryName : new String[]{"blocked.dbf", "a.dbf", "b.dbf", "c.dbf", "d.dbf", "e.dbf", "f.dbf"}) {
+				zos.putNextEntry(new ZipEntry(entryName));
+				zos.write(new byte[size]);
+				zos.closeEntry();
+			}
+		}
+		File outputDir = new File(tempArea, "out");
+		// A directory where an entry should go fails that entry only
+		File blocked = new File(outputDir, "blocked.dbf");
+		FileUtils.forceMkdir(blocked);
+		try {
+			FileHelper.unzipFile(outputDir.getAbsolutePath(), zip, 2);
+			fail("Expected an IOException");
+		} catch (IOException ex) {
+			assertTrue(blocked.isDirectory());
+			for (File unzipped : outputDir.listFiles()) {
+				if (unzipped.isFile()) {
+					assertEquals(unzipped.getName(), size, unzipped.length());
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testUnzipEntryTooLarge() throws IOException {
+		System.out.println("testUnzipEntryTooLarge");
+		File zip = createZipOfZeros("zeros.dbf", 10000);
+		FileHelper.setZipLimits(new ZipLimits(Long.MAX_VALUE, 9999, 10, 2000));
+		File outputDir = new File(tempArea, "out");
+		FileUtils.forceMkdir(outputDir);
+		try {
+			FileHelper.unzipFile(outputDir.getAbsolutePath(), zip);
+			fail("Expected a ZipLimitExceededException");
+		} catch (ZipLimitExceededException ex) {
+			assertFalse(new File(outputDir, "zeros.dbf").exists());
+		}
+	}
+
+	@Test
+	public void testValidateShapefileZipLimits() throws Exception {
+		System.out.println("testValidateShapefileZipLimits");
+		FileHelper.setZipLimits(new ZipLimits(Long.MAX_VALUE, Long.MAX_VALUE, 2, 2000));
+		try {
+			FileHelper.validateShapefileZip(validShapefileZip);
+			fail("Expected a ZipLimitExceededException");
+		} catch (ZipLimitExceededException ex) {
+		}
+
+		File copy = new File(tempArea, "copy.zip");
+		try (FileInputStream fis = new FileInputStream(validShapefileZip)) {
+			FileHelper.copyAndValidateShapefileZip(fis, copy);
+			fail("Expected a ZipLimitExceededException");
+		} catch (ZipLimitExceededException ex) {
+			assertFalse(copy.exists());
+		}
+
+		FileHelper.setZipLimits(new ZipLimits(100, Long.MAX_VALUE, 100, 2000));
+		try {
+			FileHelper.flattenZipFile(validShapefileZip);
+			fail("Expected a ZipLimitExceededException");
+		} catch (ZipLimitExceededException ex) {
+		}
+	}
+
+	@Test
+	public void testWipeOldFiles() throws IOException {
+		System.out.println("testWipeOldFiles");
+		File spool = new File(tempArea, "spool");
+		File oldDir = new File(spool, "old");
+		FileUtils.forceMkdir(oldDir);
+		File oldFile = new File(oldDir, "old.zip");
+		File newFile = new File(spool, "new.zip");
+		FileUtils.touch(oldFile);
+		FileUtils.touch(newFile);
+		assertTrue(oldFile.setLastModified(System.currentTimeMillis() - 60000));
+
+		Collection<File> deleted = FileHelper.wipeOldFiles(spool, 30000L, false);
+		assertEquals(1, deleted.size());
+		assertEquals(oldFile.getAbsoluteFile(), deleted.iterator().next().getAbsoluteFile());
+		assertFalse(oldDir.exists());
+		assertTrue(newFile.exists());
+	}
+
+	@Test
+	public void testStreamFiles() throws IOException {
+		System.out.println("testStreamFiles");
+		File unzipped = new File(tempArea, "unzipped");
+		File nested = new File(unzipped, "nested");
+		FileUtils.forceMkdir(nested);
+		FileHelper.unzipFile(unzipped.getAbsolutePath(), validShapefileZip);
+		FileUtils.touch(new File(nested, "nested.dbf"));
+
+		try (Stream<Path> files = FileHelper.streamFiles(unzipped.toPath(), null, false)) {
+			List<String> names = files.map(path -> path.getFileName().toString()).sorted().collect(Collectors.toList());
+			List<String> expected = FileHelper.getFileList(unzipped.getAbsolutePath(), false);
+			Collections.sort(expected);
+			assertEquals(expected, names);
+		}
+		try (Stream<Path> files = FileHelper.streamFiles(unzipped.toPath(), new String[]{"dbf", "prj"}, true)) {
+			assertEquals(FileHelper.getFileCollection(unzipped.getAbsolutePath(), new String[]{"dbf", "prj"}, true).size(), files.count());
+		}
+	}
+
+	@Test
+	public void testStreamFilesOlderThan() throws IOException {
+		System.out.println("testStreamFilesOlderThan");
+		File spool = new File(tempArea, "spool");
+		File nested = new File(spool, "nested");
+		FileUtils.forceMkdir(nested);
+		File oldFile = new File(nested, "old.zip");
+		FileUtils.touch(oldFile);
+		FileUtils.touch(new File(spool, "new.zip"));
+		assertTrue(oldFile.setLastModified(System.currentTimeMillis() - 60000));
+
+		try (Stream<Path> files = FileHelper.streamFilesOlderThan(spool.toPath(), 30000, true)) {
+			assertEquals(Collections.singletonList(oldFile.toPath()), files.collect(Collectors.toList()));
+		}
+		try (Stream<Path> files = FileHelper.streamFilesOlderThan(spool.toPath(), 30000, false)) {
+			assertEquals(0, files.count());
+		}
+	}
+
+	@Test
+	public void testFindFile() throws IOException {
+		System.out.println("testFindFile");
+		File nested = new File(tempArea, "a" + File.separator + "b");
+		FileUtils.forceMkdir(nested);
+		File target = new File(nested, "target.prj");
+		FileUtils.touch(target);
+
+		assertEquals(target.toPath(), FileHelper.findPath("target.prj", tempArea.toPath()).get());
+		assertFalse(FileHelper.findPath("missing.prj", tempArea.toPath()).isPresent());
+		assertEquals(target.getAbsoluteFile(), FileHelper.findFile("target.prj", tempArea.getAbsolutePath()).getAbsoluteFile());
+		assertNull(FileHelper.findFile("target.prj", new File(tempArea, "missing").getAbsolutePath()));
+	}
+
+	@Test
+	public void testDefaultZipLimitsAcceptCompressibleDbf() throws Exception {
+		System.out.println("testDefaultZipLimitsAcceptCompressibleDbf");
+		// The .dbf of this sample inflates over 200 times its compressed size
+		URL url = Thread.currentThread().getContextClassLoader().getResource(sampleShapefileLocation + "test_shorelines_pts.zip");
+		FileUtils.copyFileToDirectory(new File(url.toURI()), tempArea);
+		File pointsZip = new File(tempArea, "test_shorelines_pts.zip");
+
+		FileHelper.validateShapefileZip(pointsZip);
+		File copy = new File(tempArea, "copy.zip");
+		try (FileInputStream fis = new FileInputStream(pointsZip)) {
+			FileHelper.copyAndValidateShapefileZip(fis, copy);
+		}
+		File sequentialDir = new File(tempArea, "sequential");
+		File parallelDir = new File(tempArea, "parallel");
+		FileUtils.forceMkdir(sequentialDir);
+		FileUtils.forceMkdir(parallelDir);
+		FileHelper.unzipFile(sequentialDir.getAbsolutePath(), pointsZip);
+		FileHelper.unzipFile(parallelDir.getAbsolutePath(), pointsZip, 2);
+		assertEquals(2912923, new File(sequentialDir, "test_shorelines_pts.dbf").length());
+		assertEquals(2912923, new File(parallelDir, "test_shorelines_pts.dbf").length());
+	}
 }
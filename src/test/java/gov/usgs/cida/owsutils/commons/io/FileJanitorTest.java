@@ -0,0 +1,112 @@
+package gov.usgs.cida.owsutils.commons.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileJanitorTest {
+
+	private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+	private File root;
+
+	private static File createFile(File parent, String name, int size, long age) throws IOException {
+		File file = new File(parent, name);
+		FileUtils.writeByteArrayToFile(file, new byte[size]);
+		assertTrue(file.setLastModified(System.currentTimeMillis() - age));
+		return file;
+	}
+
+	/**
+	 * root/old.txt, root/new.txt, root/a/old.txt, root/a/b/old.txt,
+	 * root/c/new.txt and the empty old root/d
+	 */
+	@Before
+	public void setUp() throws IOException {
+		root = temporaryFolder.newFolder("spool");
+		createFile(root, "old.txt", 10, 2 * HOUR);
+		createFile(root, "new.txt", 10, 0);
+		File a = new File(root, "a");
+		File b = new File(a, "b");
+		FileUtils.forceMkdir(b);
+		createFile(a, "old.txt", 100, 2 * HOUR);
+		createFile(b, "old.txt", 1000, 2 * HOUR);
+		File c = new File(root, "c");
+		FileUtils.forceMkdir(c);
+		createFile(c, "new.txt", 10, 0);
+		File d = new File(root, "d");
+		FileUtils.forceMkdir(d);
+		assertTrue(d.setLastModified(System.currentTimeMillis() - 2 * HOUR));
+	}
+
+	private void assertSwept(FileJanitor.Result result) {
+		assertEquals(3, result.getFilesDeleted());
+		assertEquals(1110, result.getBytesDeleted());
+		// a, a/b and d
+		assertEquals(3, result.getDirectoriesDeleted());
+		assertEquals(0, result.getFailures());
+		assertTrue(new File(root, "new.txt").exists());
+		assertTrue(new File(root, "c/new.txt").exists());
+		assertFalse(new File(root, "old.txt").exists());
+		assertFalse(new File(root, "a").exists());
+		assertFalse(new File(root, "d").exists());
+	}
+
+	@Test
+	public void testSweep() throws IOException {
+		System.out.println("testSweep");
+		assertSwept(new FileJanitor(root, HOUR, true, 1).sweep());
+		assertTrue(root.exists());
+	}
+
+	@Test
+	public void testParallelSweep() throws IOException {
+		System.out.println("testParallelSweep");
+		assertSwept(new FileJanitor(root, HOUR, true, 4).sweep());
+	}
+
+	@Test
+	public void testParallelSweepWithExecutor() throws IOException {
+		System.out.println("testParallelSweepWithExecutor");
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			assertSwept(new FileJanitor(root, HOUR, true, executor, 4).sweep());
+			assertFalse(executor.isShutdown());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testSweepDeletesEmptiedDirectory() throws IOException {
+		System.out.println("testSweepDeletesEmptiedDirectory");
+		FileJanitor.Result result = new FileJanitor(root, -HOUR, true, 2).sweep();
+		assertEquals(5, result.getFilesDeleted());
+		assertEquals(5, result.getDirectoriesDeleted());
+		assertFalse(root.exists());
+	}
+
+	@Test
+	public void testScheduledSweep() throws Exception {
+		System.out.println("testScheduledSweep");
+		try (FileJanitor janitor = new FileJanitor(root, HOUR, false, 2)) {
+			janitor.start(1, TimeUnit.HOURS);
+			long deadline = System.currentTimeMillis() + 10000;
+			while (janitor.getLastResult() == null && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			assertSwept(janitor.getLastResult());
+		}
+	}
+}
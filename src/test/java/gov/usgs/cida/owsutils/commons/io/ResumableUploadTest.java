@@ -0,0 +1,130 @@
+package gov.usgs.cida.owsutils.commons.io;
+
+import gov.usgs.cida.owsutils.commons.io.exception.ChecksumMismatchException;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.apache.commons.codec.digest.DigestUtils;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ResumableUploadTest {
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+	private byte[] data;
+	private File destination;
+
+	@Before
+	public void setUp() {
+		data = new byte[100000];
+		new Random(42).nextBytes(data);
+		destination = new File(temporaryFolder.getRoot(), "upload.zip");
+	}
+
+	private InputStream chunk(int from, int to) {
+		return new ByteArrayInputStream(Arrays.copyOfRange(data, from, to));
+	}
+
+	@Test
+	public void testChunksInAnyOrder() throws Exception {
+		System.out.println("testChunksInAnyOrder");
+		try (ResumableUpload upload = ResumableUpload.open(destination, data.length)) {
+			assertEquals(30000, upload.writeChunk(70000, chunk(70000, 100000)));
+			upload.writeChunk(0, chunk(0, 40000));
+			// Overlaps both received ranges
+			upload.writeChunk(30000, chunk(30000, 75000));
+			assertTrue(upload.isComplete());
+			assertTrue(upload.getMissingRanges().isEmpty());
+
+			assertEquals(destination, upload.complete("SHA-256", DigestUtils.sha256Hex(data)));
+		}
+		assertArrayEquals(data, Files.readAllBytes(destination.toPath()));
+		assertFalse(new File(destination.getPath() + "." + ResumableUpload.PART_EXTENSION).exists());
+		assertFalse(new File(destination.getPath() + "." + ResumableUpload.MANIFEST_EXTENSION).exists());
+	}
+
+	@Test
+	public void testResumeAfterDroppedConnection() throws Exception {
+		System.out.println("testResumeAfterDroppedConnection");
+		try (ResumableUpload upload = ResumableUpload.open(destination, data.length)) {
+			upload.writeChunk(0, chunk(0, 20000));
+			InputStream dropped = new InputStream() {
+				private final InputStream in = chunk(50000, 100000);
+				private int count = 0;
+
+				@Override
+				public int read() throws IOException {
+					if (count == 12345) {
+						throw new IOException("Connection reset");
+					}
+					count++;
+					return in.read();
+				}
+			};
+			try {
+				upload.writeChunk(50000, dropped);
+				fail("Expected the dropped connection");
+			} catch (IOException ex) {
+				assertEquals("Connection reset", ex.getMessage());
+			}
+		}
+
+		try (ResumableUpload upload = ResumableUpload.open(destination, data.length)) {
+			List<ResumableUpload.Range> missing = upload.getMissingRanges();
+			assertEquals(2, missing.size());
+			assertEquals(20000, missing.get(0).getStart());
+			assertEquals(50000, missing.get(0).getEnd());
+			assertEquals(50000 + 12345, missing.get(1).getStart());
+			assertEquals(100000, missing.get(1).getEnd());
+			assertEquals(20000 + 12345, upload.getReceivedLength());
+
+			for (ResumableUpload.Range range : missing) {
+				upload.writeChunk(range.getStart(), chunk((int) range.getStart(), (int) range.getEnd()));
+			}
+			upload.complete("MD5", DigestUtils.md5Hex(data).toUpperCase());
+		}
+		assertArrayEquals(data, Files.readAllBytes(destination.toPath()));
+	}
+
+	@Test
+	public void testChecksumMismatch() throws Exception {
+		System.out.println("testChecksumMismatch");
+		try (ResumableUpload upload = ResumableUpload.open(destination, data.length)) {
+			upload.writeChunk(0, chunk(0, 100000));
+			try {
+				upload.complete("SHA-256", DigestUtils.sha256Hex("something else"));
+				fail("Expected a ChecksumMismatchException");
+			} catch (ChecksumMismatchException ex) {
+				assertEquals(1, upload.getMissingRanges().size());
+				assertEquals(0, upload.getReceivedLength());
+			}
+		}
+		assertFalse(destination.exists());
+	}
+
+	@Test
+	public void testChunkPastEnd() throws Exception {
+		System.out.println("testChunkPastEnd");
+		try (ResumableUpload upload = ResumableUpload.open(destination, 1000)) {
+			try {
+				upload.writeChunk(500, chunk(0, 20000));
+				fail("Expected the chunk to be rejected");
+			} catch (IOException ex) {
+				assertFalse(upload.isComplete());
+			}
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package gov.usgs.cida.owsutils.commons.shapefile.utils;
+
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.util.HashSet;
+import java.util.Set;
+import org.geotools.data.DataStore;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class DataStoreCacheTest {
+
+	private final Set<DataStore> disposed = new HashSet<>();
+
+	private final DataStoreCache.Factory factory = (URL url) -> {
+		return (DataStore) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{DataStore.class}, (proxy, method, args) -> {
+			switch (method.getName()) {
+				case "dispose":
+					disposed.add((DataStore) proxy);
+					return null;
+				case "hashCode":
+					return System.identityHashCode(proxy);
+				case "equals":
+					return proxy == args[0];
+				default:
+					return null;
+			}
+		});
+	};
+
+	@Test
+	public void leasesShareStore() throws Exception {
+		System.out.println("leasesShareStore");
+		DataStoreCache instance = new DataStoreCache(4, 60000, factory);
+		URL url = new URL("file:/tmp/a.shp");
+		try (DataStoreCache.Lease first = instance.acquire(url);
+				DataStoreCache.Lease second = instance.acquire(url)) {
+			assertSame(first.getDataStore(), second.getDataStore());
+		}
+		assertEquals(1, instance.getMissCount());
+		assertEquals(1, instance.getHitCount());
+		assertEquals(1, instance.size());
+		assertTrue(disposed.isEmpty());
+	}
+
+	@Test
+	public void idleStoresAreDisposed() throws Exception {
+		System.out.println("idleStoresAreDisposed");
+		DataStoreCache instance = new DataStoreCache(4, 0, factory);
+		DataStoreCache.Lease lease = instance.acquire(new URL("file:/tmp/a.shp"));
+		DataStore dataStore = lease.getDataStore();
+		Thread.sleep(5);
+		// Leased stores are never idle
+		instance.acquire(new URL("file:/tmp/b.shp")).close();
+		assertFalse(disposed.contains(dataStore));
+
+		lease.close();
+		Thread.sleep(5);
+		instance.acquire(new URL("file:/tmp/c.shp"));
+		assertTrue(disposed.contains(dataStore));
+		assertEquals(2, instance.getEvictionCount());
+	}
+
+	@Test
+	public void leastRecentlyUsedIdleStoreIsEvicted() throws Exception {
+		System.out.println("leastRecentlyUsedIdleStoreIsEvicted");
+		DataStoreCache instance = new DataStoreCache(2, 60000, factory);
+		DataStoreCache.Lease a = instance.acquire(new URL("file:/tmp/a.shp"));
+		DataStoreCache.Lease b = instance.acquire(new URL("file:/tmp/b.shp"));
+		DataStore storeA = a.getDataStore();
+		DataStore storeB = b.getDataStore();
+		b.close();
+		a.close();
+
+		instance.acquire(new URL("file:/tmp/c.shp")).close();
+		assertEquals(2, instance.size());
+		assertTrue(disposed.contains(storeB));
+		assertFalse(disposed.contains(storeA));
+	}
+
+	@Test
+	public void clearWaitsForLeases() throws Exception {
+		System.out.println("clearWaitsForLeases");
+		DataStoreCache instance = new DataStoreCache(4, 60000, factory);
+		DataStoreCache.Lease lease = instance.acquire(new URL("file:/tmp/a.shp"));
+		DataStore dataStore = lease.getDataStore();
+		instance.clear();
+		assertEquals(0, instance.size());
+		assertFalse(disposed.contains(dataStore));
+
+		lease.close();
+		lease.close();
+		assertTrue(disposed.contains(dataStore));
+		assertEquals(1, disposed.size());
+	}
+}
@@ -0,0 +1,76 @@
+package gov.usgs.cida.owsutils.commons.shapefile.utils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+
+public class EPSGLookupCacheTest {
+
+	private static final String WKT = "GEOGCS[\"GCS_WGS_1984\", DATUM[\"D_WGS_1984\", SPHEROID[\"WGS_1984\",6378137,298.257223563]], PRIMEM[\"Greenwich\",0], UNIT[\"Degree\",0.017453292519943295]]";
+
+	@Test
+	public void testHitsAndMisses() throws Exception {
+		System.out.println("testHitsAndMisses");
+		final AtomicInteger lookups = new AtomicInteger();
+		EPSGLookupCache cache = new EPSGLookupCache();
+		EPSGLookupCache.Lookup lookup = (wkt, failover) -> {
+			lookups.incrementAndGet();
+			return "EPSG:4326";
+		};
+
+		assertEquals("EPSG:4326", cache.get(WKT, true, lookup));
+		assertEquals("EPSG:4326", cache.get(WKT.replace(", ", ",\n\t"), true, lookup));
+		assertEquals("EPSG:4326", cache.get(WKT, false, lookup));
+
+		assertEquals(2, lookups.get());
+		assertEquals(1, cache.getHitCount());
+		assertEquals(2, cache.getMissCount());
+	}
+
+	@Test
+	public void testNegativeResults() throws Exception {
+		System.out.println("testNegativeResults");
+		final AtomicInteger lookups = new AtomicInteger();
+		EPSGLookupCache.Lookup lookup = (wkt, failover) -> {
+			lookups.incrementAndGet();
+			return null;
+		};
+
+		EPSGLookupCache cache = new EPSGLookupCache(10, EPSGLookupCache.EvictionPolicy.LEAST_RECENTLY_USED, false);
+		assertNull(cache.get(WKT, true, lookup));
+		assertNull(cache.get(WKT, true, lookup));
+		assertEquals(2, lookups.get());
+
+		cache = new EPSGLookupCache(10, EPSGLookupCache.EvictionPolicy.LEAST_RECENTLY_USED, true);
+		assertNull(cache.get(WKT, true, lookup));
+		assertNull(cache.get(WKT, true, lookup));
+		assertEquals(3, lookups.get());
+		assertEquals(1, cache.getHitCount());
+	}
+
+	@Test
+	public void testEviction() throws Exception {
+		System.out.println("testEviction");
+		EPSGLookupCache.Lookup lookup = (wkt, failover) -> wkt;
+
+		EPSGLookupCache cache = new EPSGLookupCache(2, EPSGLookupCache.EvictionPolicy.LEAST_RECENTLY_USED, false);
+		cache.get("A", true, lookup);
+		cache.get("B", true, lookup);
+		cache.get("A", true, lookup);
+		cache.get("C", true, lookup);
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getEvictionCount());
+		cache.get("A", true, lookup);
+		assertEquals(2, cache.getHitCount());
+
+		cache = new EPSGLookupCache(2, EPSGLookupCache.EvictionPolicy.FIRST_IN_FIRST_OUT, false);
+		cache.get("A", true, lookup);
+		cache.get("B", true, lookup);
+		cache.get("A", true, lookup);
+		cache.get("C", true, lookup);
+		cache.get("A", true, lookup);
+		assertEquals(1, cache.getHitCount());
+		assertEquals(4, cache.getMissCount());
+	}
+}
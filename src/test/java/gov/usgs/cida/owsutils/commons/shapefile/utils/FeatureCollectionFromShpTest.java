@@ -7,20 +7,24 @@ import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.commons.io.FileUtils;
+import org.geotools.data.Query;
 import org.geotools.data.crs.ReprojectFeatureResults;
-import org.geotools.feature.FeatureCollection;
+import org.geotools.factory.CommonFactoryFinder;
 import org.geotools.referencing.CRS;
 import org.geotools.referencing.crs.DefaultGeographicCRS;
 import org.junit.After;
 import org.junit.AfterClass;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.opengis.feature.simple.SimpleFeature;
-import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.filter.Filter;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
 /**
@@ -74,7 +78,7 @@ public class FeatureCollectionFromShpTest {
 		FileHelper.unzipFile(tmpDir.getAbsolutePath(), pointsZipFile);
 		shp = new File(tmpDir, "test_shorelines_pts.shp").toURI().toURL();
 		
-		FeatureCollection<SimpleFeatureType, SimpleFeature> coll = FeatureCollectionFromShp.getFeatureCollectionFromShp(shp);
+		StoreBackedFeatureCollection coll = FeatureCollectionFromShp.getFeatureCollectionFromShp(shp);
 		
 		CoordinateReferenceSystem crs = coll.getSchema().getGeometryDescriptor().getCoordinateReferenceSystem();
 		assertEquals(crs.getName().getCodeSpace(), "EPSG");
@@ -112,6 +116,7 @@ public class FeatureCollectionFromShpTest {
 		assertEquals(reprojectedSf.getDefaultGeometryProperty().getBounds().getMaxY(), reprojectedSf.getDefaultGeometryProperty().getBounds().getMinY(), 0);
 		
 		results.closeIterator(iter);
+		coll.close();
 		
 		try {
 			FileUtils.deleteDirectory(tmpDir);
@@ -120,4 +125,69 @@ public class FeatureCollectionFromShpTest {
 		}
 	}
 
+	@Test
+	public void testFeatureCollectionsShareDataStore() throws Exception {
+		System.out.println("testFeatureCollectionsShareDataStore");
+		File tmpDir = new File(workDir, String.valueOf(new Date().getTime()));
+		FileUtils.forceMkdir(tmpDir);
+		FileHelper.unzipFile(tmpDir.getAbsolutePath(), pointsZipFile);
+		URL shp = new File(tmpDir, "test_shorelines_pts.shp").toURI().toURL();
+
+		DataStoreCache previousCache = FeatureCollectionFromShp.getDataStoreCache();
+		DataStoreCache cache = new DataStoreCache();
+		FeatureCollectionFromShp.setDataStoreCache(cache);
+		try {
+			try (StoreBackedFeatureCollection first = FeatureCollectionFromShp.getFeatureCollectionFromShp(shp)) {
+				try (StoreBackedFeatureCollection second = FeatureCollectionFromShp.getFeatureCollectionFromShp(shp)) {
+					assertEquals(1, cache.getMissCount());
+					assertEquals(1, cache.getHitCount());
+					assertEquals(3379, second.size());
+				}
+				// The store stays open for collections not yet closed
+				assertEquals(3379, first.size());
+			}
+			assertEquals(1, cache.size());
+		} finally {
+			FeatureCollectionFromShp.setDataStoreCache(previousCache);
+			cache.clear();
+		}
+
+		try {
+			FileUtils.deleteDirectory(tmpDir);
+		} catch (IOException ex) {
+			// meh
+		}
+	}
+
+	@Test
+	public void testForEachFeature() throws Exception {
+		System.out.println("testForEachFeature");
+		File tmpDir = new File(workDir, String.valueOf(new Date().getTime()));
+		FileUtils.forceMkdir(tmpDir);
+		FileHelper.unzipFile(tmpDir.getAbsolutePath(), pointsZipFile);
+		URL shp = new File(tmpDir, "test_shorelines_pts.shp").toURI().toURL();
+
+		AtomicInteger count = new AtomicInteger();
+		FeatureCollectionFromShp.forEachFeature(shp, null, (feature) -> {
+			count.incrementAndGet();
+		});
+		assertEquals(3379, count.get());
+
+		Filter bbox = CommonFactoryFinder.getFilterFactory2().bbox("the_geom", -1.756861581602166E7d - 1, 2423192.79378892d - 1, -1.756861581602166E7d + 1, 2423192.79378892d + 1, "EPSG:3857");
+		AtomicInteger filteredCount = new AtomicInteger();
+		FeatureCollectionFromShp.forEachFeature(shp, new Query(null, bbox, new String[]{"the_geom", "DATE_"}), (feature) -> {
+			assertEquals(2, feature.getAttributeCount());
+			assertNotNull(feature.getAttribute("DATE_"));
+			filteredCount.incrementAndGet();
+		});
+		assertTrue(filteredCount.get() > 0);
+		assertTrue(filteredCount.get() < 3379);
+
+		try {
+			FileUtils.deleteDirectory(tmpDir);
+		} catch (IOException ex) {
+			// meh
+		}
+	}
+
 }
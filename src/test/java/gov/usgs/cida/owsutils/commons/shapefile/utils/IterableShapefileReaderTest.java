@@ -1,11 +1,18 @@
 package gov.usgs.cida.owsutils.commons.shapefile.utils;
 
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.MultiLineString;
 import gov.usgs.cida.owsutils.commons.io.FileHelper;
 import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
 import org.apache.commons.io.FileUtils;
 import org.geotools.data.shapefile.dbf.DbaseFileHeader;
 import org.geotools.data.shapefile.dbf.DbaseFileReader.Row;
@@ -13,7 +20,9 @@ import org.geotools.data.shapefile.files.ShpFiles;
 import org.geotools.data.shapefile.shp.ShapefileReader.Record;
 import org.junit.After;
 import org.junit.AfterClass;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
@@ -70,6 +79,10 @@ public class IterableShapefileReaderTest {
 		FileHelper.unzipFile(tmpDir.getAbsolutePath(), NJBaseline);
 		try (IterableShapefileReader subject = new IterableShapefileReader(new ShpFiles(new File(tmpDir, "baseline.shp")))) {
 			assertTrue(subject.hasNext());
+			// Lines are read into packed sequences by default
+			MultiLineString shape = (MultiLineString) subject.next().record.shape();
+			LineString line = (LineString) shape.getGeometryN(0);
+			assertTrue(line.getCoordinateSequence() instanceof PackedXYZMCoordinateSequence);
 		}
 		try {
 			FileUtils.deleteDirectory(tmpDir);
@@ -152,4 +165,279 @@ public class IterableShapefileReaderTest {
 			// meh
 		}
 	}
+
+	@Test
+	public void readPointsFileInParallel() throws Exception {
+		System.out.println("readPointsFileInParallel");
+		File tmpDir = new File(workDir, String.valueOf(new Date().getTime()));
+		FileUtils.forceMkdir(tmpDir);
+		FileHelper.unzipFile(tmpDir.getAbsolutePath(), pointsZipFile);
+		try (IterableShapefileReader subject = new IterableShapefileReader(new ShpFiles(new File(tmpDir, "test_shorelines_pts.shp")))) {
+			List<String> sequential = new ArrayList<>();
+			for (ShapeAndAttributes saa : subject) {
+				sequential.add(describe(saa));
+			}
+
+			List<String> parallel = StreamSupport.stream(subject.spliterator(), true)
+					.map(IterableShapefileReaderTest::describe)
+					.collect(Collectors.toList());
+
+			assertEquals(3379, parallel.size());
+			assertEquals(sequential, parallel);
+		}
+		try {
+			FileUtils.deleteDirectory(tmpDir);
+		} catch (IOException ex) {
+			// meh
+		}
+	}
+
+	@Test
+	public void readPointsFileWithIndependentIterators() throws Exception {
+		System.out.println("readPointsFileWithIndependentIterators");
+		File tmpDir = new File(workDir, String.valueOf(new Date().getTime()));
+		FileUtils.forceMkdir(tmpDir);
+		FileHelper.unzipFile(tmpDir.getAbsolutePath(), pointsZipFile);
+		try (IterableShapefileReader subject = new IterableShapefileReader(new ShpFiles(new File(tmpDir, "test_shorelines_pts.shp")))) {
+			Iterator<ShapeAndAttributes> first = subject.iterator();
+			assertEquals(1, first.next().record.number);
+			assertEquals(2, first.next().record.number);
+
+			// A second iterator starts from the beginning without moving the first
+			Iterator<ShapeAndAttributes> second = subject.iterator();
+			assertEquals(1, second.next().record.number);
+			assertEquals(3, first.next().record.number);
+			assertEquals(2, second.next().record.number);
+
+			int ct = 2;
+			while (second.hasNext()) {
+				second.next();
+				ct++;
+			}
+			assertEquals(3379, ct);
+			assertTrue(first.hasNext());
+		}
+		try {
+			FileUtils.deleteDirectory(tmpDir);
+		} catch (IOException ex) {
+			// meh
+		}
+	}
+
+	@Test
+	public void readPointsFileWithSelectedFields() throws Exception {
+		System.out.println("readPointsFileWithSelectedFields");
+		File tmpDir = new File(workDir, String.valueOf(new Date().getTime()));
+		FileUtils.forceMkdir(tmpDir);
+		FileHelper.unzipFile(tmpDir.getAbsolutePath(), pointsZipFile);
+		try (IterableShapefileReader subject = new IterableShapefileReader(new ShpFiles(new File(tmpDir, "test_shorelines_pts.shp")))) {
+			String dateField = subject.getDbfHeader().getFieldName(2);
+			String uncyField = subject.getDbfHeader().getFieldName(3);
+			subject.setSelectedFields(uncyField, dateField);
+			assertArrayEquals(new int[]{3, 2}, subject.getSelectedFields());
+
+			ShapeAndAttributes saa = subject.iterator().next();
+			assertArrayEquals(new Object[]{4.795d, "01/01/1927"}, saa.readAttributes());
+
+			subject.setSelectedFields();
+			assertArrayEquals(new int[0], subject.getSelectedFields());
+			saa = subject.iterator().next();
+			assertEquals(0, saa.readAttributes().length);
+
+			subject.setSelectedFieldIndexes(3, 2);
+			saa = subject.iterator().next();
+			assertArrayEquals(new Object[]{4.795d, "01/01/1927"}, saa.readAttributes());
+
+			// Resetting the selection reads every field again
+			subject.setSelectedFieldIndexes((int[]) null);
+			saa = subject.iterator().next();
+			assertEquals(subject.getDbfHeader().getNumFields(), saa.readAttributes().length);
+		}
+		try {
+			FileUtils.deleteDirectory(tmpDir);
+		} catch (IOException ex) {
+			// meh
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void selectUnknownField() throws Exception {
+		System.out.println("selectUnknownField");
+		File tmpDir = new File(workDir, String.valueOf(new Date().getTime()));
+		FileUtils.forceMkdir(tmpDir);
+		FileHelper.unzipFile(tmpDir.getAbsolutePath(), pointsZipFile);
+		try (IterableShapefileReader subject = new IterableShapefileReader(new ShpFiles(new File(tmpDir, "test_shorelines_pts.shp")))) {
+			subject.setSelectedFields("NOT_A_FIELD");
+		}
+	}
+
+	@Test
+	public void readPointsFileWithBBoxFilter() throws Exception {
+		System.out.println("readPointsFileWithBBoxFilter");
+		File tmpDir = new File(workDir, String.valueOf(new Date().getTime()));
+		FileUtils.forceMkdir(tmpDir);
+		FileHelper.unzipFile(tmpDir.getAbsolutePath(), pointsZipFile);
+		try (IterableShapefileReader subject = new IterableShapefileReader(new ShpFiles(new File(tmpDir, "test_shorelines_pts.shp")))) {
+			Envelope bbox = new Envelope(subject.iterator().next().record.envelope());
+			bbox.expandBy(50000);
+
+			List<String> expected = new ArrayList<>();
+			for (ShapeAndAttributes saa : subject) {
+				if (bbox.intersects(saa.record.minX, saa.record.minY)) {
+					expected.add(describe(saa));
+				}
+			}
+			assertTrue(expected.size() > 0);
+
+			subject.setBBoxFilter(bbox);
+			List<String> filtered = new ArrayList<>();
+			for (ShapeAndAttributes saa : subject) {
+				filtered.add(describe(saa));
+			}
+			assertEquals(expected, filtered);
+
+			List<String> parallel = StreamSupport.stream(subject.spliterator(), true)
+					.map(IterableShapefileReaderTest::describe)
+					.collect(Collectors.toList());
+			assertEquals(expected, parallel);
+		}
+		try {
+			FileUtils.deleteDirectory(tmpDir);
+		} catch (IOException ex) {
+			// meh
+		}
+	}
+
+	@Test
+	public void readPointsFileByIndex() throws Exception {
+		System.out.println("readPointsFileByIndex");
+		File tmpDir = new File(workDir, String.valueOf(new Date().getTime()));
+		FileUtils.forceMkdir(tmpDir);
+		FileHelper.unzipFile(tmpDir.getAbsolutePath(), pointsZipFile);
+		try (IterableShapefileReader subject = new IterableShapefileReader(new ShpFiles(new File(tmpDir, "test_shorelines_pts.shp")))) {
+			List<String> sequential = new ArrayList<>();
+			for (ShapeAndAttributes saa : subject) {
+				sequential.add(describe(saa));
+			}
+			assertEquals(3379, subject.getRecordCount());
+
+			assertEquals(sequential.get(3378), describe(subject.get(3378)));
+			assertEquals(sequential.get(0), describe(subject.get(0)));
+			assertEquals(sequential.get(1000), describe(subject.get(1000)));
+
+			List<String> range = new ArrayList<>();
+			Iterator<ShapeAndAttributes> rangeIterator = subject.range(100, 110);
+			while (rangeIterator.hasNext()) {
+				range.add(describe(rangeIterator.next()));
+			}
+			assertEquals(sequential.subList(100, 110), range);
+			assertFalse(subject.range(5, 5).hasNext());
+		}
+		try {
+			FileUtils.deleteDirectory(tmpDir);
+		} catch (IOException ex) {
+			// meh
+		}
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void readPointsFileOutOfBounds() throws Exception {
+		System.out.println("readPointsFileOutOfBounds");
+		File tmpDir = new File(workDir, String.valueOf(new Date().getTime()));
+		FileUtils.forceMkdir(tmpDir);
+		FileHelper.unzipFile(tmpDir.getAbsolutePath(), pointsZipFile);
+		try (IterableShapefileReader subject = new IterableShapefileReader(new ShpFiles(new File(tmpDir, "test_shorelines_pts.shp")))) {
+			subject.get(3379);
+		}
+	}
+
+	@Test
+	public void queryPointsFileWithSpatialIndex() throws Exception {
+		System.out.println("queryPointsFileWithSpatialIndex");
+		File tmpDir = new File(workDir, String.valueOf(new Date().getTime()));
+		FileUtils.forceMkdir(tmpDir);
+		FileHelper.unzipFile(tmpDir.getAbsolutePath(), pointsZipFile);
+		File shp = new File(tmpDir, "test_shorelines_pts.shp");
+		try (IterableShapefileReader subject = new IterableShapefileReader(new ShpFiles(shp))) {
+			ShapeAndAttributes first = subject.get(0);
+			double x = first.record.minX;
+			double y = first.record.minY;
+			Envelope bbox = new Envelope(x - 50000, x + 50000, y - 50000, y + 50000);
+
+			subject.setBBoxFilter(bbox);
+			List<String> expected = new ArrayList<>();
+			for (ShapeAndAttributes saa : subject) {
+				expected.add(describe(saa));
+			}
+			subject.setBBoxFilter(null);
+
+			List<String> indexed = new ArrayList<>();
+			Iterator<ShapeAndAttributes> query = subject.query(bbox);
+			while (query.hasNext()) {
+				indexed.add(describe(query.next()));
+			}
+			assertEquals(expected, indexed);
+			ShapeAndAttributes nearest = subject.nearest(x, y);
+			assertEquals(x, nearest.record.minX, 0);
+			assertEquals(y, nearest.record.minY, 0);
+		}
+		File indexFile = ShapefileSpatialIndex.getIndexFile(shp);
+		assertTrue(indexFile.exists());
+		assertTrue(ShapefileSpatialIndex.read(indexFile).isCurrent(shp));
+		try {
+			FileUtils.deleteDirectory(tmpDir);
+		} catch (IOException ex) {
+			// meh
+		}
+	}
+
+	@Test
+	public void buildSpatialIndexWithBBoxFilter() throws Exception {
+		System.out.println("buildSpatialIndexWithBBoxFilter");
+		File tmpDir = new File(workDir, String.valueOf(new Date().getTime()));
+		FileUtils.forceMkdir(tmpDir);
+		FileHelper.unzipFile(tmpDir.getAbsolutePath(), pointsZipFile);
+		File shp = new File(tmpDir, "test_shorelines_pts.shp");
+		try (IterableShapefileReader subject = new IterableShapefileReader(new ShpFiles(shp))) {
+			ShapeAndAttributes first = subject.get(0);
+			double x = first.record.minX;
+			double y = first.record.minY;
+			Envelope bbox = new Envelope(x - 50000, x + 50000, y - 50000, y + 50000);
+
+			List<String> expected = new ArrayList<>();
+			for (ShapeAndAttributes saa : subject) {
+				if (bbox.intersects(saa.record.minX, saa.record.minY)) {
+					expected.add(describe(saa));
+				}
+			}
+			assertTrue(expected.size() > 0);
+
+			// The filter must not leak into the index, which is shared by every reader
+			subject.setBBoxFilter(bbox);
+			ShapefileSpatialIndex index = subject.getSpatialIndex();
+			assertEquals(subject.getRecordCount(), index.getRecordCount());
+
+			List<String> indexed = new ArrayList<>();
+			Iterator<ShapeAndAttributes> query = subject.query(bbox);
+			while (query.hasNext()) {
+				indexed.add(describe(query.next()));
+			}
+			assertEquals(expected, indexed);
+		}
+		ShapefileSpatialIndex persisted = ShapefileSpatialIndex.read(ShapefileSpatialIndex.getIndexFile(shp));
+		assertEquals(3379, persisted.getRecordCount());
+		try {
+			FileUtils.deleteDirectory(tmpDir);
+		} catch (IOException ex) {
+			// meh
+		}
+	}
+
+	private static String describe(ShapeAndAttributes saa) {
+		try {
+			return saa.record.number + ":" + saa.record.minX + ":" + saa.row.read(3);
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
 }
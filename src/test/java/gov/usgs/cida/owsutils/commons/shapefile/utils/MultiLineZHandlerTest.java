@@ -0,0 +1,86 @@
+package gov.usgs.cida.owsutils.commons.shapefile.utils;
+
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.MultiLineString;
+import com.vividsolutions.jtsexample.geom.ExtendedCoordinate;
+import com.vividsolutions.jtsexample.geom.ExtendedCoordinateSequenceFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import org.geotools.data.shapefile.shp.ShapeType;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class MultiLineZHandlerTest {
+
+	// Two parts, the second holding a single point
+	private static final int[] PART_OFFSETS = {0, 3};
+	private static final double[][] XYZM = {
+		{1.0, 2.0, 10.0, 0.5},
+		{3.0, 4.0, 11.0, 1.5},
+		{5.0, 6.0, -1.0e39, 2.5},
+		{7.0, 8.0, 12.0, 3.5}
+	};
+
+	@Test
+	public void testPackedReadMatchesExtendedRead() throws Exception {
+		System.out.println("testPackedReadMatchesExtendedRead");
+		MultiLineZHandler extendedHandler = new MultiLineZHandler(ShapeType.ARCZ, new GeometryFactory(ExtendedCoordinateSequenceFactory.instance()));
+		MultiLineZHandler packedHandler = new MultiLineZHandler(ShapeType.ARCZ);
+
+		MultiLineString extended = (MultiLineString) extendedHandler.read(createArcZRecord(), ShapeType.ARCZ, false);
+		MultiLineString packed = (MultiLineString) packedHandler.read(createArcZRecord(), ShapeType.ARCZ, false);
+
+		assertEquals(2, packed.getNumGeometries());
+		CoordinateSequence firstPart = ((LineString) packed.getGeometryN(0)).getCoordinateSequence();
+		assertTrue(firstPart instanceof PackedXYZMCoordinateSequence);
+		assertEquals(3, firstPart.size());
+		for (int i = 0; i < firstPart.size(); i++) {
+			CoordinateSequence expected = ((LineString) extended.getGeometryN(0)).getCoordinateSequence();
+			assertEquals(expected.getX(i), firstPart.getX(i), 0);
+			assertEquals(expected.getY(i), firstPart.getY(i), 0);
+			assertEquals(expected.getOrdinate(i, CoordinateSequence.Z), firstPart.getOrdinate(i, CoordinateSequence.Z), 0);
+			assertEquals(expected.getOrdinate(i, CoordinateSequence.M), firstPart.getOrdinate(i, CoordinateSequence.M), 0);
+		}
+		assertTrue(Double.isNaN(firstPart.getOrdinate(2, CoordinateSequence.Z)));
+		assertEquals(2.5, ((ExtendedCoordinate) firstPart.getCoordinate(2)).getM(), 0);
+
+		// A single point part is cloned into a two point line
+		CoordinateSequence secondPart = ((LineString) packed.getGeometryN(1)).getCoordinateSequence();
+		assertEquals(2, secondPart.size());
+		for (int i = 0; i < secondPart.size(); i++) {
+			assertEquals(7.0, secondPart.getX(i), 0);
+			assertEquals(8.0, secondPart.getY(i), 0);
+			assertEquals(12.0, secondPart.getOrdinate(i, CoordinateSequence.Z), 0);
+			assertEquals(3.5, secondPart.getOrdinate(i, CoordinateSequence.M), 0);
+		}
+	}
+
+	private static ByteBuffer createArcZRecord() {
+		ByteBuffer buffer = ByteBuffer.allocate(4 * 8 + 8 + 4 * PART_OFFSETS.length + XYZM.length * 32 + 4 * 8);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < 4; i++) {
+			buffer.putDouble(0);
+		}
+		buffer.putInt(PART_OFFSETS.length);
+		buffer.putInt(XYZM.length);
+		for (int offset : PART_OFFSETS) {
+			buffer.putInt(offset);
+		}
+		for (double[] ordinates : XYZM) {
+			buffer.putDouble(ordinates[0]);
+			buffer.putDouble(ordinates[1]);
+		}
+		for (int ordinateIndex = 2; ordinateIndex < 4; ordinateIndex++) {
+			buffer.putDouble(0);
+			buffer.putDouble(0);
+			for (double[] ordinates : XYZM) {
+				buffer.putDouble(ordinates[ordinateIndex]);
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+}
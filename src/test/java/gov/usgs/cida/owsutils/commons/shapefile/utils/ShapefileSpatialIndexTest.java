@@ -0,0 +1,171 @@
+package gov.usgs.cida.owsutils.commons.shapefile.utils;
+
+import com.vividsolutions.jts.geom.Envelope;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.apache.commons.io.FileUtils;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+public class ShapefileSpatialIndexTest {
+
+	private static Envelope[] randomEnvelopes(int count) {
+		Random random = new Random(42);
+		Envelope[] envelopes = new Envelope[count];
+		for (int rIdx = 0; rIdx < count; rIdx++) {
+			if (rIdx % 97 == 0) {
+				// Null shape
+				continue;
+			}
+			double x = random.nextDouble() * 1000;
+			double y = random.nextDouble() * 1000;
+			envelopes[rIdx] = new Envelope(x, x + random.nextDouble() * 10, y, y + random.nextDouble() * 10);
+		}
+		return envelopes;
+	}
+
+	private static int[] scan(Envelope[] envelopes, Envelope query) {
+		List<Integer> matches = new ArrayList<>();
+		for (int rIdx = 0; rIdx < envelopes.length; rIdx++) {
+			if (envelopes[rIdx] != null && envelopes[rIdx].intersects(query)) {
+				matches.add(rIdx);
+			}
+		}
+		int[] result = new int[matches.size()];
+		for (int mIdx = 0; mIdx < result.length; mIdx++) {
+			result[mIdx] = matches.get(mIdx);
+		}
+		return result;
+	}
+
+	@Test
+	public void queryMatchesFullScan() {
+		System.out.println("queryMatchesFullScan");
+		Envelope[] envelopes = randomEnvelopes(5000);
+		ShapefileSpatialIndex index = ShapefileSpatialIndex.build(envelopes, 0, 0);
+		assertEquals(5000, index.getRecordCount());
+
+		Envelope[] queries = new Envelope[]{
+			new Envelope(100, 200, 100, 200),
+			new Envelope(0, 1000, 0, 1000),
+			new Envelope(500, 500, 500, 500),
+			new Envelope(2000, 3000, 2000, 3000)
+		};
+		for (Envelope query : queries) {
+			assertArrayEquals(scan(envelopes, query), index.query(query));
+		}
+	}
+
+	@Test
+	public void nearestMatchesFullScan() {
+		System.out.println("nearestMatchesFullScan");
+		Envelope[] envelopes = randomEnvelopes(5000);
+		ShapefileSpatialIndex index = ShapefileSpatialIndex.build(envelopes, 0, 0);
+
+		Random random = new Random(7);
+		for (int qIdx = 0; qIdx < 100; qIdx++) {
+			double x = random.nextDouble() * 1200 - 100;
+			double y = random.nextDouble() * 1200 - 100;
+			double best = Double.POSITIVE_INFINITY;
+			for (Envelope envelope : envelopes) {
+				if (envelope != null) {
+					best = Math.min(best, envelope.distance(new Envelope(x, x, y, y)));
+				}
+			}
+			int nearest = index.nearest(x, y);
+			assertEquals(best, envelopes[nearest].distance(new Envelope(x, x, y, y)), 0);
+		}
+	}
+
+	@Test
+	public void emptyIndex() {
+		System.out.println("emptyIndex");
+		ShapefileSpatialIndex index = ShapefileSpatialIndex.build(new Envelope[0], 0, 0);
+		assertEquals(0, index.query(new Envelope(0, 1, 0, 1)).length);
+		assertEquals(-1, index.nearest(0, 0));
+	}
+
+	@Test
+	public void writeAndRead() throws IOException {
+		System.out.println("writeAndRead");
+		File workDir = new File(FileUtils.getTempDirectory(), "spatialindex-" + System.nanoTime());
+		FileUtils.forceMkdir(workDir);
+		try {
+			File shp = new File(workDir, "test.shp");
+			FileUtils.writeStringToFile(shp, "not really a shapefile");
+			File indexFile = ShapefileSpatialIndex.getIndexFile(shp);
+			assertEquals("test." + ShapefileSpatialIndex.FILE_EXTENSION, indexFile.getName());
+
+			Envelope[] envelopes = randomEnvelopes(1000);
+			ShapefileSpatialIndex index = ShapefileSpatialIndex.build(envelopes, shp.lastModified(), shp.length());
+			index.write(indexFile);
+			assertEquals(2, workDir.list().length);
+
+			ShapefileSpatialIndex persisted = ShapefileSpatialIndex.read(indexFile);
+			assertTrue(persisted.isCurrent(shp));
+			Envelope query = new Envelope(250, 400, 600, 700);
+			assertArrayEquals(index.query(query), persisted.query(query));
+
+			FileUtils.writeStringToFile(shp, "changed", true);
+			assertFalse(persisted.isCurrent(shp));
+		} finally {
+			FileUtils.deleteQuietly(workDir);
+		}
+	}
+
+	@Test
+	public void readCorruptIndex() throws IOException {
+		System.out.println("readCorruptIndex");
+		File workDir = new File(FileUtils.getTempDirectory(), "spatialindex-" + System.nanoTime());
+		FileUtils.forceMkdir(workDir);
+		try {
+			File indexFile = new File(workDir, "test." + ShapefileSpatialIndex.FILE_EXTENSION);
+			ShapefileSpatialIndex.build(randomEnvelopes(1000), 0, 0).write(indexFile);
+			long length = indexFile.length();
+			// Offset of the node count, after the magic number, version, .shp stamp, record count and height
+			long nodeCountOffset = 4 + 4 + 8 + 8 + 4 + 4;
+			for (int nodeCount : new int[]{Integer.MAX_VALUE, -1, 1}) {
+				try (RandomAccessFile raf = new RandomAccessFile(indexFile, "rw")) {
+					int original = readInt(raf, nodeCountOffset);
+					raf.seek(nodeCountOffset);
+					raf.writeInt(nodeCount);
+					assertUnreadable(indexFile);
+					raf.seek(nodeCountOffset);
+					raf.writeInt(original);
+				}
+			}
+			try (RandomAccessFile raf = new RandomAccessFile(indexFile, "rw")) {
+				// Root referencing itself as a child
+				raf.seek(length - 8);
+				raf.writeInt(Integer.MAX_VALUE - 1);
+				assertUnreadable(indexFile);
+				raf.setLength(length - 100);
+				assertUnreadable(indexFile);
+			}
+		} finally {
+			FileUtils.deleteQuietly(workDir);
+		}
+	}
+
+	private static int readInt(RandomAccessFile raf, long offset) throws IOException {
+		raf.seek(offset);
+		return raf.readInt();
+	}
+
+	private static void assertUnreadable(File indexFile) {
+		try {
+			ShapefileSpatialIndex.read(indexFile);
+			fail("Corrupt index was read");
+		} catch (IOException ex) {
+			assertTrue(ex.getMessage().contains(indexFile.getName()));
+		}
+	}
+}
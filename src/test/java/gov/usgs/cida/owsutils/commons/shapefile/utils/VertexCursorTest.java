@@ -0,0 +1,66 @@
+package gov.usgs.cida.owsutils.commons.shapefile.utils;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.MultiLineString;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jtsexample.geom.ExtendedCoordinate;
+import com.vividsolutions.jtsexample.geom.ExtendedCoordinateSequenceFactory;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class VertexCursorTest {
+
+	private GeometryFactory geometryFactory = new GeometryFactory(ExtendedCoordinateSequenceFactory.instance());
+
+	@Test
+	public void testMultiLineString() {
+		System.out.println("testMultiLineString");
+		Coordinate[] coordinates = new Coordinate[6];
+		for (int i = 0; i < coordinates.length; i++) {
+			coordinates[i] = new ExtendedCoordinate(99.9 + i, i / 100.0, i * 2.0, i * 10.0);
+		}
+		LineString ls1 = geometryFactory.createLineString(new Coordinate[]{coordinates[0], coordinates[1], coordinates[2], coordinates[3]});
+		LineString ls2 = geometryFactory.createLineString(new Coordinate[]{coordinates[4], coordinates[5]});
+		MultiLineString mls = geometryFactory.createMultiLineString(new LineString[]{ls1, ls2});
+
+		VertexCursor cursor = new VertexCursor(mls);
+		int ct = 0;
+		while (cursor.next()) {
+			assertEquals(coordinates[ct].x, cursor.getX(), 0);
+			assertEquals(coordinates[ct].y, cursor.getY(), 0);
+			assertEquals(coordinates[ct].z, cursor.getZ(), 0);
+			assertEquals(((ExtendedCoordinate) coordinates[ct]).getM(), cursor.getM(), 0);
+			assertEquals(ct < 4 ? 0 : 1, cursor.getPartIndex());
+			assertEquals(ct < 4 ? ct : ct - 4, cursor.getVertexIndex());
+			ct++;
+		}
+		assertEquals(coordinates.length, ct);
+		assertFalse(cursor.next());
+	}
+
+	@Test
+	public void testResetWithoutM() {
+		System.out.println("testResetWithoutM");
+		GeometryFactory plainFactory = new GeometryFactory();
+		LineString ls = plainFactory.createLineString(new Coordinate[]{new Coordinate(1, 2), new Coordinate(3, 4)});
+		Point p = plainFactory.createPoint(new Coordinate(5, 6));
+
+		VertexCursor cursor = new VertexCursor(ls);
+		assertTrue(cursor.next());
+		assertTrue(cursor.next());
+		assertEquals(3, cursor.getX(), 0);
+		assertTrue(Double.isNaN(cursor.getM()));
+		assertFalse(cursor.next());
+
+		cursor.reset(p);
+		assertTrue(cursor.next());
+		assertEquals(5, cursor.getX(), 0);
+		assertEquals(6, cursor.getY(), 0);
+		assertEquals(0, cursor.getPartIndex());
+		assertFalse(cursor.next());
+	}
+}